@@ -0,0 +1,174 @@
+package jenkins.plugins.fogbugz;
+
+import hudson.MarkupText;
+import hudson.MarkupText.SubText;
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The compiled case id regex, together with the group of it that holds the case id.
+ * Compiled once per regex by {@link FogbugzProjectProperty.DescriptorImpl#getCaseIdPattern()}.
+ */
+public final class CaseIdPattern {
+    private static final Logger LOGGER = Logger.getLogger(CaseIdPattern.class.getName());
+
+    /** A group body that can only match digits, like "[0-9]*" or "\d+". */
+    private static final Pattern DIGITS =
+            Pattern.compile("(?:(?:\\\\d|\\[0-9\\]|\\[\\\\d\\]|[0-9])(?:[*+?]|\\{\\d+(?:,\\d*)?\\})?[?+]?)+");
+
+    @Getter private final String regex;
+
+    /** The compiled regex, null if it is not valid. */
+    @Getter private final Pattern pattern;
+
+    /** Group that holds the case id, or -1 if the first numeric group has to be looked up for every match. */
+    @Getter private final int idGroup;
+
+    public CaseIdPattern(String regex) {
+        this.regex = regex;
+        Pattern pattern = null;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            LOGGER.log(Level.WARNING, "Cannot compile pattern: {0}", regex);
+        }
+        this.pattern = pattern;
+        this.idGroup = pattern != null ? findDigitGroup(regex) : -1;
+    }
+
+    public boolean isValid() {
+        return this.pattern != null;
+    }
+
+    /**
+     * @param text The text the token was found in.
+     * @return The case id in the token, or -1 if it has none.
+     */
+    public int getId(MarkupText text, SubText token) {
+        if (this.idGroup >= 0) {
+            return parseId(text.getText(), token.start(this.idGroup), token.end(this.idGroup));
+        }
+        for (int i = 0; i <= token.groupCount(); i++) {
+            int id = parseId(text.getText(), token.start(i), token.end(i));
+            if (id >= 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param text The text the match was found in.
+     * @return The case id in the match, or -1 if it has none.
+     */
+    public int getId(CharSequence text, MatchResult match) {
+        if (this.idGroup >= 0) {
+            return parseId(text, match.start(this.idGroup), match.end(this.idGroup));
+        }
+        for (int i = 0; i <= match.groupCount(); i++) {
+            int id = parseId(text, match.start(i), match.end(i));
+            if (id >= 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds all case ids in a text.
+     * @param ids Collection to add the ids to.
+     */
+    public void findIds(CharSequence text, Collection<Integer> ids) {
+        if (this.pattern == null || text == null) {
+            return;
+        }
+        Matcher matcher = this.pattern.matcher(text);
+        while (matcher.find()) {
+            int id = getId(text, matcher);
+            if (id >= 0) {
+                ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * Parses a group of a match as a case id, without creating any strings.
+     * @return The case id, or -1 if the group is empty, did not match or is not a number.
+     */
+    private static int parseId(CharSequence text, int start, int end) {
+        if (start < 0 || end <= start || end - start > 9) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Finds the first group of the regex that can only match digits, group 0 being the whole regex.
+     * @return The group number, or -1 if there is none.
+     */
+    static int findDigitGroup(String regex) {
+        if (DIGITS.matcher(regex).matches()) {
+            return 0;
+        }
+        // Group numbers and body starts of the open groups, -1 for groups that do not capture.
+        Deque<int[]> open = new ArrayDeque<int[]>();
+        int groups = 0;
+        int found = -1;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (regex.startsWith("Q", i + 1)) {
+                    int quoteEnd = regex.indexOf("\\E", i + 2);
+                    i = quoteEnd < 0 ? regex.length() : quoteEnd + 1;
+                } else {
+                    i++;
+                }
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+                // A ']' right after the opening bracket is part of the class.
+                if (regex.startsWith("]", i + 1)) {
+                    i++;
+                } else if (regex.startsWith("^]", i + 1)) {
+                    i += 2;
+                }
+            } else if (c == '(') {
+                if (!regex.startsWith("?", i + 1)) {
+                    open.push(new int[] {++groups, i + 1});
+                } else if (regex.startsWith("?<", i + 1) && !regex.startsWith("?<=", i + 1)
+                        && !regex.startsWith("?<!", i + 1)) {
+                    int nameEnd = regex.indexOf('>', i);
+                    open.push(new int[] {++groups, nameEnd + 1});
+                } else {
+                    open.push(new int[] {-1, i + 1});
+                }
+            } else if (c == ')' && !open.isEmpty()) {
+                int[] group = open.pop();
+                if (group[0] > 0 && (found < 0 || group[0] < found)
+                        && DIGITS.matcher(regex.substring(group[1], i)).matches()) {
+                    found = group[0];
+                }
+            }
+        }
+        return found;
+    }
+}
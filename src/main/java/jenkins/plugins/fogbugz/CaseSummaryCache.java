@@ -0,0 +1,168 @@
+package jenkins.plugins.fogbugz;
+
+import hudson.model.Computer;
+import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzManager;
+import org.paylogic.fogbugz.NoSuchCaseException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Titles and status of the cases linked from changelogs, so the changes page can show them without
+ * asking Fogbugz. Cases that are not known yet are fetched in the background, many at once with a single
+ * 'ixBug:1,2,3' search, and show up on the next view of the page.
+ */
+@Log
+public class CaseSummaryCache {
+
+    /** Number of seconds a case summary is shown before it is fetched again. */
+    public static final int TTL = Integer.getInteger(CaseSummaryCache.class.getName() + ".ttl", 600);
+
+    public static final int MAX_SIZE = Integer.getInteger(CaseSummaryCache.class.getName() + ".maxSize", 5000);
+
+    /** Maximum number of cases in a single search. */
+    public static final int BATCH_SIZE = Integer.getInteger(CaseSummaryCache.class.getName() + ".batchSize", 100);
+
+    /** Maximum number of cases being fetched at the same time, more are left for a later view of the page. */
+    public static final int MAX_PENDING = Integer.getInteger(CaseSummaryCache.class.getName() + ".maxPending", 1000);
+
+    /**
+     * What the changes page shows about a case.
+     */
+    public static final class Summary {
+        /** Title of the case, null if the case does not exist. */
+        @Getter private final String title;
+        @Getter private final boolean open;
+        private final long fetched;
+
+        Summary(String title, boolean open, long fetched) {
+            this.title = title;
+            this.open = open;
+            this.fetched = fetched;
+        }
+
+        public boolean exists() {
+            return this.title != null;
+        }
+    }
+
+    /** Least recently used first, trimmed to {@link #MAX_SIZE}. Guarded by this. */
+    private final Map<Integer, Summary> summaries = new LinkedHashMap<Integer, Summary>(16, 0.75f, true);
+
+    /** Cases that are being fetched right now. Guarded by this. */
+    private final Set<Integer> loading = new HashSet<Integer>();
+
+    private final Executor executor;
+    private final int maxPending;
+
+    public CaseSummaryCache() {
+        this(Computer.threadPoolForRemoting, MAX_PENDING);
+    }
+
+    CaseSummaryCache(Executor executor, int maxPending) {
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return The summary of the case, or null if it is not known (anymore).
+     */
+    public synchronized Summary get(int caseId) {
+        Summary summary = this.summaries.get(caseId);
+        if (summary != null && System.nanoTime() - summary.fetched > TimeUnit.SECONDS.toNanos(TTL)) {
+            this.summaries.remove(caseId);
+            return null;
+        }
+        return summary;
+    }
+
+    /**
+     * Starts fetching the cases that are not known yet, in the background. Does not wait for them.
+     */
+    public void request(Collection<Integer> caseIds) {
+        List<Integer> missing = new ArrayList<Integer>();
+        synchronized (this) {
+            for (Integer caseId : caseIds) {
+                if (this.loading.size() >= this.maxPending) {
+                    break;
+                }
+                if (get(caseId) == null && this.loading.add(caseId)) {
+                    missing.add(caseId);
+                }
+            }
+        }
+        for (int from = 0; from < missing.size(); from += BATCH_SIZE) {
+            final List<Integer> batch = new ArrayList<Integer>(
+                    missing.subList(from, Math.min(missing.size(), from + BATCH_SIZE)));
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    fetch(batch);
+                }
+            });
+        }
+    }
+
+    private void fetch(List<Integer> caseIds) {
+        StringBuilder query = new StringBuilder("ixBug:");
+        for (int i = 0; i < caseIds.size(); i++) {
+            query.append(i == 0 ? "" : ",").append(caseIds.get(i));
+        }
+
+        List<FogbugzCase> cases;
+        try {
+            cases = this.getFogbugzManager().searchForCases(query.toString());
+        } catch (NoSuchCaseException e) {
+            cases = new ArrayList<FogbugzCase>();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Fetching cases " + caseIds + " for the changelog failed.", e);
+            synchronized (this) {
+                this.loading.removeAll(caseIds);
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (FogbugzCase fbCase : cases) {
+                this.summaries.put(fbCase.getId(), new Summary(fbCase.getTitle(), fbCase.isOpen(), now));
+            }
+            // Remember the ones that were not found as well, so they are not searched for on every view.
+            for (Integer caseId : caseIds) {
+                if (!this.summaries.containsKey(caseId)) {
+                    this.summaries.put(caseId, new Summary(null, false, now));
+                }
+            }
+            for (Iterator<Integer> it = this.summaries.keySet().iterator();
+                 this.summaries.size() > MAX_SIZE && it.hasNext(); ) {
+                it.next();
+                it.remove();
+            }
+            this.loading.removeAll(caseIds);
+        }
+    }
+
+    FogbugzManager getFogbugzManager() {
+        return new FogbugzNotifier().getFogbugzManager();
+    }
+
+    public synchronized void clear() {
+        this.summaries.clear();
+    }
+
+    public synchronized int getSize() {
+        return this.summaries.size();
+    }
+}
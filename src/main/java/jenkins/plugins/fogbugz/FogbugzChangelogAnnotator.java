@@ -3,54 +3,119 @@ package jenkins.plugins.fogbugz;
 import hudson.Extension;
 import hudson.MarkupText;
 import hudson.MarkupText.SubText;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogAnnotator;
 import hudson.scm.ChangeLogSet.Entry;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
+/**
+ * Links case ids in changelogs to the cases, and shows their title and status next to them.
+ * The titles come from the {@link CaseSummaryCache}; the cases of a whole changelog are requested at once,
+ * when the first entry of it is annotated.
+ * Where the case ids were stored with the build ({@link FogbugzChangelogSpansAction}), those are used instead of
+ * searching the changelog again. For older builds they are worked out once and kept in memory, the builds are
+ * not saved again.
+ */
 @Extension
 public class FogbugzChangelogAnnotator extends ChangeLogAnnotator {
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     private static final String VIEW_CASE_URL = "/default.asp?";
 
+    /** Time between two requests for the cases of the same changelog. */
+    private static final long REQUEST_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Case ids in the changelog of a build, and when they were last requested.
+     */
+    private static final class ChangelogCases {
+        private final FogbugzChangelogSpansAction spans;
+        private final Set<Integer> ids;
+        private long requested;
+
+        ChangelogCases(FogbugzChangelogSpansAction spans) {
+            this.spans = spans;
+            this.ids = spans.getIds();
+        }
+    }
+
+    /** Guarded by itself. */
+    private final Map<AbstractBuild<?, ?>, ChangelogCases> changelogCases =
+            new WeakHashMap<AbstractBuild<?, ?>, ChangelogCases>();
+
     @Override
     public void annotate(AbstractBuild<?, ?> build, Entry change, MarkupText text) {
-        Pattern pattern = null;
-        String regex = FogbugzProjectProperty.DESCRIPTOR.getRegex();
-        try {
-            pattern = Pattern.compile(regex);
-        } catch (PatternSyntaxException e) {
-            logger.log(Level.WARNING, "Cannot compile pattern: {0}", regex);
+        CaseIdPattern caseIdPattern = FogbugzProjectProperty.DESCRIPTOR.getCaseIdPattern();
+        if (!caseIdPattern.isValid()) {
             return;
         }
+        CaseSummaryCache summaries = FogbugzProjectProperty.DESCRIPTOR.getCaseSummaries();
+        FogbugzChangelogSpansAction action = this.requestChangelogCases(build, caseIdPattern, summaries);
 
-        for (SubText token : text.findTokens(pattern)) {
-            try {
-                Integer key = getId(token);
-                token.surroundWith(
-                        String.format("<a href='%s%s%d'>", FogbugzProjectProperty.DESCRIPTOR.getUrl(), VIEW_CASE_URL,
-                                key), "</a>");
-            } catch (Exception e) {
+        String caseUrl = FogbugzProjectProperty.DESCRIPTOR.getUrl() + VIEW_CASE_URL;
+        int[] spans = action.getSpans(change.getCommitId(), text.getText());
+        if (spans != null) {
+            for (int i = 0; i < spans.length; i += 3) {
+                text.addMarkup(spans[i], spans[i + 1], startTag(caseUrl, spans[i + 2]), endTag(summaries, spans[i + 2]));
+            }
+            return;
+        }
+
+        for (SubText token : text.findTokens(caseIdPattern.getPattern())) {
+            int key = caseIdPattern.getId(text, token);
+            if (key < 0) {
+                logger.log(Level.FINE, "No case id in {0}", token.getText());
                 continue;
             }
+            token.surroundWith(startTag(caseUrl, key), endTag(summaries, key));
         }
     }
 
-    private int getId(SubText token) {
-        for (int i = 0; ; i++) {
-            String id = token.group(i);
-            try {
-                return Integer.valueOf(id);
-            } catch (NumberFormatException e) {
-                logger.log(Level.FINE, "{0} is not a number in group {1}, trying next group", new Object[]{id, i});
-                continue;
+    private static String startTag(String caseUrl, int caseId) {
+        return String.format("<a href='%s%d'>", caseUrl, caseId);
+    }
+
+    private static String endTag(CaseSummaryCache summaries, int caseId) {
+        CaseSummaryCache.Summary summary = summaries.get(caseId);
+        if (summary == null || !summary.exists()) {
+            return "</a>";
+        }
+        return String.format("</a> <span class='fogbugz-case'>(%s, %s)</span>",
+                Util.escape(summary.getTitle()), summary.isOpen() ? "open" : "closed");
+    }
+
+    /**
+     * Requests all cases in the changelog of the build, so they are fetched in one go instead of per entry.
+     * @return The case ids in the changelog, as stored with the build or worked out now.
+     */
+    private FogbugzChangelogSpansAction requestChangelogCases(AbstractBuild<?, ?> build, CaseIdPattern caseIdPattern,
+                                                              CaseSummaryCache summaries) {
+        ChangelogCases cases;
+        synchronized (this.changelogCases) {
+            cases = this.changelogCases.get(build);
+            if (cases == null || !cases.spans.getRegex().equals(caseIdPattern.getRegex())) {
+                FogbugzChangelogSpansAction action = build.getAction(FogbugzChangelogSpansAction.class);
+                if (action == null || !action.isCurrent(caseIdPattern.getRegex())) {
+                    action = FogbugzChangelogSpansAction.compute(build, caseIdPattern);
+                }
+                cases = new ChangelogCases(action);
+                this.changelogCases.put(build, cases);
+            }
+            long now = System.nanoTime();
+            if (cases.requested != 0 && now - cases.requested < REQUEST_INTERVAL) {
+                return cases.spans;
             }
+            cases.requested = now;
         }
+        summaries.request(cases.ids);
+        return cases.spans;
     }
 
 }
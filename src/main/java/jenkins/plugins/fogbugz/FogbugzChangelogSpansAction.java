@@ -0,0 +1,120 @@
+package jenkins.plugins.fogbugz;
+
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+import hudson.scm.ChangeLogSet;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+/**
+ * The case ids found in the changelog of a build, worked out once when the build completes
+ * (see {@link FogbugzChangelogSpansListener}), or in memory for older builds, so {@link FogbugzChangelogAnnotator} does not have to run the
+ * regex on every view of the changes page.
+ * Spans are stored per commit id of the changelog entries, as start, end and case id triplets of offsets in the
+ * message. Entries without a commit id are left out, they are searched when they are shown.
+ */
+public class FogbugzChangelogSpansAction extends InvisibleAction {
+
+    /** The regex the spans were found with, they are only used while it is still the configured one. */
+    @Getter private final String regex;
+
+    /** Spans per commit id. Null in actions stored by older versions, which need to be worked out again. */
+    private final Map<String, int[]> commitSpans;
+
+    /** Case ids of all entries, also those without a commit id. */
+    private final int[] ids;
+
+    FogbugzChangelogSpansAction(String regex, Map<String, int[]> commitSpans, int[] ids) {
+        this.regex = regex;
+        this.commitSpans = commitSpans;
+        this.ids = ids;
+    }
+
+    /**
+     * @return Whether the spans were found with the regex, and can be used.
+     */
+    public boolean isCurrent(String regex) {
+        return this.commitSpans != null && this.ids != null && this.regex.equals(regex);
+    }
+
+    /**
+     * Finds the case ids in the changelog of a build.
+     */
+    public static FogbugzChangelogSpansAction compute(AbstractBuild<?, ?> build, CaseIdPattern caseIdPattern) {
+        Map<String, int[]> spans = new HashMap<String, int[]>();
+        Set<Integer> ids = new LinkedHashSet<Integer>();
+        for (ChangeLogSet.Entry entry : build.getChangeSet()) {
+            String message = entry.getMsg();
+            if (message == null) {
+                continue;
+            }
+            int[] found = findSpans(message, caseIdPattern);
+            for (int i = 2; i < found.length; i += 3) {
+                ids.add(found[i]);
+            }
+            if (entry.getCommitId() != null) {
+                spans.put(entry.getCommitId(), found);
+            }
+        }
+        int[] idArray = new int[ids.size()];
+        int i = 0;
+        for (int id : ids) {
+            idArray[i++] = id;
+        }
+        return new FogbugzChangelogSpansAction(caseIdPattern.getRegex(), spans, idArray);
+    }
+
+    static int[] findSpans(String message, CaseIdPattern caseIdPattern) {
+        int[] found = new int[3];
+        int count = 0;
+        Matcher matcher = caseIdPattern.getPattern().matcher(message);
+        while (matcher.find()) {
+            int id = caseIdPattern.getId(message, matcher);
+            if (id < 0 || matcher.end() == matcher.start()) {
+                continue;
+            }
+            if (count + 3 > found.length) {
+                found = Arrays.copyOf(found, found.length * 2 + 3);
+            }
+            found[count++] = matcher.start();
+            found[count++] = matcher.end();
+            found[count++] = id;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * @param commitId Commit id of the changelog entry, may be null.
+     * @param message Message of the entry, spans that do not fit in it are not used.
+     * @return Start, end and case id triplets for the entry, or null if the entry is not known.
+     */
+    public int[] getSpans(String commitId, String message) {
+        int[] found = commitId != null ? this.commitSpans.get(commitId) : null;
+        if (found == null) {
+            return null;
+        }
+        for (int i = 1; i < found.length; i += 3) {
+            if (found[i] > message.length()) {
+                return null;
+            }
+        }
+        return found.clone();
+    }
+
+    /**
+     * @return All case ids in the changelog.
+     */
+    public Set<Integer> getIds() {
+        Set<Integer> ids = new LinkedHashSet<Integer>();
+        for (int id : this.ids) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
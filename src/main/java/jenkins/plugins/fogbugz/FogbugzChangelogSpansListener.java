@@ -0,0 +1,49 @@
+package jenkins.plugins.fogbugz;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the case ids of the changelog with every build that completes, see {@link FogbugzChangelogSpansAction}.
+ */
+@Extension
+public class FogbugzChangelogSpansListener extends RunListener<AbstractBuild<?, ?>> {
+    private static final Logger LOGGER = Logger.getLogger(FogbugzChangelogSpansListener.class.getName());
+
+    @Override
+    public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+        addSpans(build);
+    }
+
+    /**
+     * Adds the case ids of the changelog to the build, unless it has them for the current regex already.
+     * @return true if the build was changed.
+     */
+    static boolean addSpans(AbstractBuild<?, ?> build) {
+        CaseIdPattern caseIdPattern = FogbugzProjectProperty.DESCRIPTOR.getCaseIdPattern();
+        if (!caseIdPattern.isValid()) {
+            return false;
+        }
+        FogbugzChangelogSpansAction existing = build.getAction(FogbugzChangelogSpansAction.class);
+        if (existing != null && existing.isCurrent(caseIdPattern.getRegex())) {
+            return false;
+        }
+        FogbugzChangelogSpansAction action = FogbugzChangelogSpansAction.compute(build, caseIdPattern);
+        if (existing != null) {
+            build.getActions().remove(existing);
+        }
+        build.getActions().add(action);
+        try {
+            build.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot save the changelog case ids of " + build + ".", e);
+        }
+        return true;
+    }
+}
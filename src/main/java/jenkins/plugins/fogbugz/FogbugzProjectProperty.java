@@ -8,6 +8,7 @@ import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.util.FormValidation;
+import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -35,6 +36,11 @@ public class FogbugzProjectProperty extends JobProperty<AbstractProject<?, ?>> {
         private String regex;
         private String url;
 
+        /** Compiled regex, replaced when the regex is configured. */
+        private transient volatile CaseIdPattern caseIdPattern;
+
+        private final transient CaseSummaryCache caseSummaries = new CaseSummaryCache();
+
         public DescriptorImpl() {
             super(FogbugzProjectProperty.class);
             load();
@@ -60,7 +66,11 @@ public class FogbugzProjectProperty extends JobProperty<AbstractProject<?, ?>> {
         public boolean configure(StaplerRequest req, JSONObject formData) {
             regex = req.getParameter("fogbugz.regex");
             url = req.getParameter("fogbugz.url");
+            caseIdPattern = new CaseIdPattern(getRegex());
+            caseSummaries.clear();
             save();
+            // The Fogbugz managers are created with the URL, so let them pick up the new one.
+            new FogbugzNotifier().getDescriptor().resetFogbugzManagers();
             return true;
         }
 
@@ -79,6 +89,22 @@ public class FogbugzProjectProperty extends JobProperty<AbstractProject<?, ?>> {
             return regex;
         }
 
+        /**
+         * Returns the compiled regex, check {@link CaseIdPattern#isValid()} before using it.
+         */
+        public CaseIdPattern getCaseIdPattern() {
+            CaseIdPattern pattern = caseIdPattern;
+            if (pattern == null) {
+                pattern = new CaseIdPattern(getRegex());
+                caseIdPattern = pattern;
+            }
+            return pattern;
+        }
+
+        public CaseSummaryCache getCaseSummaries() {
+            return caseSummaries;
+        }
+
         public FormValidation doRegexCheck(@QueryParameter(fixEmpty = true) String value) {
             if (value == null) {
                 return FormValidation.error("No Case ID regex");
@@ -0,0 +1,235 @@
+package jenkins.plugins.fogbugz.jobpoller;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.plugins.fogbugz.jobtrigger.FogbugzEventListener;
+import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
+import lombok.extern.java.Log;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzManager;
+import org.paylogic.fogbugz.FogbugzUser;
+import org.paylogic.fogbugz.InvalidResponseException;
+import org.paylogic.fogbugz.NoSuchCaseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Polls Fogbugz for all {@link FogbugzStatePoller}s, so jobs watching the same field do not each send their own
+ * search. A poll is done a random time up to {@link #JITTER} after it is requested, instead of on the cron tick,
+ * and all jobs of the same field that ask in the meantime are searched for at once. Their projects are combined
+ * into one search per {@link #MAX_PROJECTS} projects, and the cases found are handed to the jobs of their project.
+ * All pollers search for the cases of the mergekeeper, so the field is all that sets their searches apart.
+ */
+@Log
+public class FogbugzPollCoordinator {
+
+    /** Maximum time between a poll request and the search. */
+    public static final long JITTER =
+            Long.getLong(FogbugzPollCoordinator.class.getName() + ".jitter", TimeUnit.SECONDS.toMillis(30));
+
+    /** Maximum number of projects combined in a single search. */
+    public static final int MAX_PROJECTS = Integer.getInteger(FogbugzPollCoordinator.class.getName() + ".maxProjects", 25);
+
+    private static final FogbugzPollCoordinator INSTANCE = new FogbugzPollCoordinator(JITTER);
+
+    private final long jitter;
+
+    private final Random random = new Random();
+
+    private final ScheduledExecutorService executor;
+
+    /** Pollers waiting for the next search, per field. Guarded by this. */
+    private final Map<String, Set<FogbugzStatePoller>> pending = new HashMap<String, Set<FogbugzStatePoller>>();
+
+    FogbugzPollCoordinator(long jitter) {
+        this.jitter = jitter;
+        this.executor = new ScheduledThreadPoolExecutor(1,
+                new NamingThreadFactory(new DaemonThreadFactory(), "FogbugzPollCoordinator"));
+    }
+
+    public static FogbugzPollCoordinator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Requests a poll for the job of the poller. Does nothing if it is waiting for one already.
+     */
+    public void request(FogbugzStatePoller poller) {
+        final String field = poller.ciProjectField;
+        synchronized (this) {
+            Set<FogbugzStatePoller> pollers = this.pending.get(field);
+            if (pollers != null) {
+                pollers.add(poller);
+                return;
+            }
+            pollers = new LinkedHashSet<FogbugzStatePoller>();
+            pollers.add(poller);
+            this.pending.put(field, pollers);
+        }
+        long delay = this.jitter > 0 ? (long) (this.random.nextDouble() * this.jitter) : 0;
+        this.executor.schedule(new Runnable() {
+            public void run() {
+                FogbugzPollCoordinator.this.poll(field);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the waiting poll request of a poller, e.g. when its job is deleted or reconfigured.
+     */
+    public synchronized void cancel(FogbugzStatePoller poller) {
+        Set<FogbugzStatePoller> pollers = this.pending.get(poller.ciProjectField);
+        if (pollers != null) {
+            pollers.remove(poller);
+        }
+    }
+
+    private void poll(String field) {
+        List<FogbugzStatePoller> pollers;
+        synchronized (this) {
+            Set<FogbugzStatePoller> waiting = this.pending.remove(field);
+            if (waiting == null || waiting.isEmpty()) {
+                return;
+            }
+            pollers = new ArrayList<FogbugzStatePoller>(waiting);
+        }
+        try {
+            this.poll(new FogbugzNotifier(), field, pollers, new FogbugzEventListener());
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Polling Fogbugz for field " + field + " failed.", e);
+            for (FogbugzStatePoller poller : pollers) {
+                poller.pollFailed();
+            }
+        }
+    }
+
+    /**
+     * Searches for the cases of all pollers of a field, and hands them to the pollers.
+     * Every poller gets either {@link FogbugzStatePoller#polled} or {@link FogbugzStatePoller#pollFailed}.
+     */
+    void poll(FogbugzNotifier fb, String field, List<FogbugzStatePoller> pollers, FogbugzEventListener fbListener) {
+        FogbugzManager fbManager;
+        FogbugzUser user;
+        try {
+            fbManager = fb.getFogbugzManager(field);
+            user = fbManager.getFogbugzUser(fbManager.getMergekeeperUserId());
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "FogbugzPollCoordinator could not get the mergekeeper for field " + field + ".", e);
+            for (FogbugzStatePoller poller : pollers) {
+                poller.pollFailed();
+            }
+            return;
+        }
+
+        // Several jobs can watch the same project.
+        Map<String, List<FogbugzStatePoller>> byProject = new LinkedHashMap<String, List<FogbugzStatePoller>>();
+        for (FogbugzStatePoller poller : pollers) {
+            String project = poller.ciProject.toLowerCase();
+            List<FogbugzStatePoller> projectPollers = byProject.get(project);
+            if (projectPollers == null) {
+                projectPollers = new ArrayList<FogbugzStatePoller>();
+                byProject.put(project, projectPollers);
+            }
+            projectPollers.add(poller);
+        }
+
+        List<String> projects = new ArrayList<String>(byProject.keySet());
+        for (int from = 0; from < projects.size(); from += MAX_PROJECTS) {
+            List<String> batch = projects.subList(from, Math.min(projects.size(), from + MAX_PROJECTS));
+            try {
+                this.poll(fb, fbManager, field, user, batch, byProject, fbListener);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "FogbugzPollCoordinator failed to search for " + batch + ".", e);
+                pollFailed(batch, byProject);
+            }
+        }
+    }
+
+    private static void pollFailed(List<String> projects, Map<String, List<FogbugzStatePoller>> byProject) {
+        for (String project : projects) {
+            for (FogbugzStatePoller poller : byProject.get(project)) {
+                poller.pollFailed();
+            }
+        }
+    }
+
+    private void poll(FogbugzNotifier fb, FogbugzManager fbManager, String field, FogbugzUser user,
+                      List<String> projects, Map<String, List<FogbugzStatePoller>> byProject,
+                      FogbugzEventListener fbListener) {
+        long started = System.currentTimeMillis();
+        // The search has to cover the poller that is furthest behind.
+        long since = Long.MAX_VALUE;
+        StringBuilder conditions = new StringBuilder();
+        for (String project : projects) {
+            for (FogbugzStatePoller poller : byProject.get(project)) {
+                since = Math.min(since, poller.getSince(poller.getQuery(user.name), started));
+            }
+            FogbugzStatePoller first = byProject.get(project).get(0);
+            conditions.append(conditions.length() == 0 ? "" : " OR ")
+                    .append(String.format("%s:\"%s\"", field, first.ciProject));
+        }
+
+        String query;
+        if (projects.size() == 1) {
+            query = byProject.get(projects.get(0)).get(0).getQuery(user.name);
+        } else {
+            query = String.format("assignedto:\"%s\" (%s)", user.name, conditions);
+        }
+        if (since > 0) {
+            query += FogbugzStatePoller.editedSince(since);
+        }
+
+        List<FogbugzCase> cases;
+        try {
+            cases = fbManager.searchForCases(query);
+        } catch (InvalidResponseException e) {
+            log.log(Level.SEVERE, "FogbugzPollCoordinator encountered an error while searching for " + projects + ".", e);
+            pollFailed(projects, byProject);
+            return;
+        } catch (NoSuchCaseException e) {
+            cases = Collections.emptyList();
+        }
+        long searchTime = System.currentTimeMillis() - started;
+        log.info("FogbugzPollCoordinator found " + cases.size() + " cases for " + projects.size() + " projects.");
+
+        Map<String, List<FogbugzCase>> casesByProject = new HashMap<String, List<FogbugzCase>>();
+        if (projects.size() == 1) {
+            casesByProject.put(projects.get(0), cases);
+        } else {
+            for (FogbugzCase cs : cases) {
+                String project = cs.getCiProject() != null ? cs.getCiProject().toLowerCase() : null;
+                List<FogbugzCase> projectCases = casesByProject.get(project);
+                if (projectCases == null) {
+                    projectCases = new ArrayList<FogbugzCase>();
+                    casesByProject.put(project, projectCases);
+                }
+                projectCases.add(cs);
+            }
+        }
+
+        for (String project : projects) {
+            List<FogbugzCase> projectCases = casesByProject.get(project);
+            for (FogbugzStatePoller poller : byProject.get(project)) {
+                try {
+                    int scheduled = projectCases != null ? poller.processCases(fb, fbListener, projectCases) : 0;
+                    poller.polled(poller.getQuery(user.name), started, searchTime, since == 0, scheduled);
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "FogbugzStatePoller for project " + poller.ciProject + " failed.", e);
+                    poller.pollFailed();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package jenkins.plugins.fogbugz.jobpoller;
+
+import lombok.Getter;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interval between the polls of a {@link FogbugzStatePoller} in adaptive mode, and statistics of its polls.
+ * The interval goes back to {@link #MIN_INTERVAL} after a poll that scheduled builds, and doubles up to
+ * {@link #MAX_INTERVAL} after a poll that found nothing, failed or took longer than {@link #SLOW_SEARCH}.
+ * Intervals are counted from when a poll is requested, so the jitter of the {@link FogbugzPollCoordinator}
+ * does not add up.
+ */
+public class FogbugzPollSchedule {
+
+    /** Shortest interval, the poller schedule can make it longer. */
+    public static final long MIN_INTERVAL =
+            Long.getLong(FogbugzPollSchedule.class.getName() + ".minInterval", TimeUnit.MINUTES.toMillis(1));
+
+    /** Longest interval. */
+    public static final long MAX_INTERVAL =
+            Long.getLong(FogbugzPollSchedule.class.getName() + ".maxInterval", TimeUnit.MINUTES.toMillis(30));
+
+    /** A search that takes longer than this counts as a sign that Fogbugz is busy. */
+    public static final long SLOW_SEARCH =
+            Long.getLong(FogbugzPollSchedule.class.getName() + ".slowSearch", TimeUnit.SECONDS.toMillis(10));
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final long slowSearch;
+
+    private long interval;
+    private long requested;
+    private long nextPoll;
+    private long lastPoll;
+
+    @Getter private int polls;
+    @Getter private int pollsWithBuilds;
+    @Getter private int failures;
+    @Getter private int slowPolls;
+    private long totalInterval;
+
+    public FogbugzPollSchedule() {
+        this(MIN_INTERVAL, MAX_INTERVAL, SLOW_SEARCH);
+    }
+
+    FogbugzPollSchedule(long minInterval, long maxInterval, long slowSearch) {
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.slowSearch = slowSearch;
+        this.interval = minInterval;
+    }
+
+    /**
+     * Called on every tick of the poller schedule.
+     * A tick up to half the shortest interval early counts, as ticks do not come at exact times.
+     * @return Whether it is time for a poll; if so, the poll counts as requested now.
+     */
+    public synchronized boolean request(long now) {
+        if (now + this.minInterval / 2 < this.nextPoll) {
+            return false;
+        }
+        this.requested = now;
+        return true;
+    }
+
+    /**
+     * Records a successful poll.
+     * @param searchTime How long the search took.
+     * @param scheduled Number of builds it scheduled.
+     */
+    public synchronized void polled(long now, long searchTime, int scheduled) {
+        this.count(now);
+        if (scheduled > 0) {
+            this.pollsWithBuilds++;
+            this.interval = this.minInterval;
+        } else {
+            this.backOff();
+        }
+        if (searchTime > this.slowSearch) {
+            this.slowPolls++;
+            if (scheduled > 0) {
+                this.backOff();
+            }
+        }
+        this.scheduleNext(now);
+    }
+
+    /**
+     * Records a poll that failed.
+     */
+    public synchronized void failed(long now) {
+        this.count(now);
+        this.failures++;
+        this.backOff();
+        this.scheduleNext(now);
+    }
+
+    private void count(long now) {
+        long started = this.requested > 0 ? this.requested : now;
+        if (this.lastPoll > 0) {
+            this.totalInterval += started - this.lastPoll;
+        }
+        this.lastPoll = started;
+        this.polls++;
+    }
+
+    private void backOff() {
+        this.interval = Math.min(this.maxInterval, this.interval * 2);
+    }
+
+    private void scheduleNext(long now) {
+        this.nextPoll = (this.requested > 0 ? this.requested : now) + this.interval;
+        this.requested = 0;
+    }
+
+    public synchronized long getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * @return Average time between the polls, or 0 before the second poll.
+     */
+    public synchronized long getAverageInterval() {
+        return this.polls > 1 ? this.totalInterval / (this.polls - 1) : 0;
+    }
+
+    public long getIntervalSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(this.getInterval());
+    }
+
+    public long getAverageIntervalSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(this.getAverageInterval());
+    }
+
+    /**
+     * @return When the last poll was requested, or null if there was none.
+     */
+    public synchronized Date getLastPoll() {
+        return this.lastPoll > 0 ? new Date(this.lastPoll) : null;
+    }
+
+    /**
+     * @return When the next poll is due in adaptive mode, or null if it is due on the next tick.
+     */
+    public synchronized Date getNextPoll() {
+        return this.nextPoll > 0 ? new Date(this.nextPoll) : null;
+    }
+}
@@ -0,0 +1,118 @@
+package jenkins.plugins.fogbugz.jobpoller;
+
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+
+/**
+ * Persisted progress of a {@link FogbugzStatePoller}: when the last successful poll started, and when the last
+ * full poll did. Stored next to the job, so a restart does not cost a full poll.
+ * The watermark belongs to one query; it is ignored when the poller is configured with another one.
+ */
+@Log
+public class FogbugzPollWatermark {
+
+    private static final int VERSION = 1;
+
+    @Getter private final File file;
+
+    private boolean loaded;
+    private String query;
+    private long since;
+    private long lastFullPoll;
+
+    public FogbugzPollWatermark(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return Start time of the last successful poll of the query, or 0 if there is none.
+     */
+    public synchronized long getSince(String query) {
+        this.load();
+        return query.equals(this.query) ? this.since : 0;
+    }
+
+    /**
+     * @return Start time of the last successful full poll of the query, or 0 if there is none.
+     */
+    public synchronized long getLastFullPoll(String query) {
+        this.load();
+        return query.equals(this.query) ? this.lastFullPoll : 0;
+    }
+
+    /**
+     * Records a successful poll.
+     * @param started When the poll started, so changes made during the poll are picked up by the next one.
+     * @param full Whether it was a full poll.
+     */
+    public synchronized void update(String query, long started, boolean full) {
+        this.load();
+        if (!query.equals(this.query)) {
+            this.lastFullPoll = 0;
+        }
+        this.query = query;
+        this.since = started;
+        if (full) {
+            this.lastFullPoll = started;
+        }
+        try {
+            this.write();
+        } catch (IOException e) {
+            // Only costs a full poll after a restart.
+            log.log(Level.WARNING, "Could not save poll watermark to " + this.file + ".", e);
+        }
+    }
+
+    private void load() {
+        if (this.loaded) {
+            return;
+        }
+        this.loaded = true;
+        if (!this.file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return;
+                }
+                this.query = in.readUTF();
+                this.since = in.readLong();
+                this.lastFullPoll = in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not read poll watermark from " + this.file + ", doing a full poll.", e);
+            this.query = null;
+        }
+    }
+
+    private void write() throws IOException {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(this.query);
+            out.writeLong(this.since);
+            out.writeLong(this.lastFullPoll);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), this.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,34 @@
+package jenkins.plugins.fogbugz.jobpoller;
+
+import hudson.model.Action;
+import hudson.model.Item;
+import lombok.Getter;
+
+/**
+ * Shows how often the {@link FogbugzStatePoller} of a job polls, on the page of the job.
+ */
+public class FogbugzPollerAction implements Action {
+    @Getter private final Item job;
+    @Getter private final FogbugzStatePoller poller;
+
+    public FogbugzPollerAction(Item job, FogbugzStatePoller poller) {
+        this.job = job;
+        this.poller = poller;
+    }
+
+    public FogbugzPollSchedule getSchedule() {
+        return this.poller.getSchedule();
+    }
+
+    public String getIconFileName() {
+        return "/plugin/fogbugz/images/fogbugz_icon.png";
+    }
+
+    public String getDisplayName() {
+        return "Fogbugz polling";
+    }
+
+    public String getUrlName() {
+        return "fogbugz-polling";
+    }
+}
@@ -1,39 +1,71 @@
 package jenkins.plugins.fogbugz.jobpoller;
 
 import antlr.ANTLRException;
-import hudson.EnvVars;
 import hudson.Extension;
+import hudson.model.Action;
 import hudson.model.Item;
 import hudson.model.Job;
-import hudson.model.ParameterValue;
-import hudson.model.Queue;
 import hudson.triggers.TimerTrigger;
 import hudson.triggers.TriggerDescriptor;
 
-import java.io.IOException;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
-import hudson.util.LogTaskListener;
 import jenkins.plugins.fogbugz.jobtrigger.FogbugzEventListener;
+import jenkins.plugins.fogbugz.jobtrigger.FogbugzInFlightCases;
 import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
+import lombok.Getter;
 import lombok.extern.java.Log;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.paylogic.fogbugz.FogbugzCase;
-import org.paylogic.fogbugz.FogbugzManager;
-import org.paylogic.fogbugz.FogbugzUser;
-import org.paylogic.fogbugz.InvalidResponseException;
-import org.paylogic.fogbugz.NoSuchCaseException;
 
 /**
  * Fogbugz build poller.
+ * Polls through the {@link FogbugzPollCoordinator}, so jobs watching the same field share their searches.
+ * In incremental mode only the cases edited since the last poll are fetched, with a full poll every
+ * {@link #FULL_POLL_INTERVAL} to pick up anything that was missed.
+ * In adaptive mode the schedule is how often it may poll at most, see {@link FogbugzPollSchedule}.
  */
 @Log
 public class FogbugzStatePoller extends TimerTrigger {
 
+    /** Time between full polls in incremental mode. */
+    public static final long FULL_POLL_INTERVAL =
+            Long.getLong(FogbugzStatePoller.class.getName() + ".fullPollInterval", TimeUnit.HOURS.toMillis(1));
+
+    /** Margin taken off the watermark, to cover the difference between the Jenkins and Fogbugz clocks. */
+    public static final long WATERMARK_OVERLAP =
+            Long.getLong(FogbugzStatePoller.class.getName() + ".watermarkOverlap", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Time zone of the edit date in incremental searches. Fogbugz reads it in the time zone of the user Jenkins
+     * logs in as, so that user should be set to UTC, or this to its time zone.
+     */
+    public static final String TIME_ZONE = System.getProperty(FogbugzStatePoller.class.getName() + ".timeZone", "UTC");
+
+    private static final String WATERMARK_FILE = "fogbugz-poller-watermark";
+
     public final String ciProject;
     public final String ciProjectField;
 
+    /** Only fetch the cases edited since the last poll. */
+    @Getter private boolean incremental;
+
+    /** Poll less often while nothing changes, see {@link FogbugzPollSchedule}. */
+    @Getter private boolean adaptive;
+
+    private transient FogbugzPollWatermark watermark;
+
+    private transient FogbugzPollSchedule schedule;
+
     @DataBoundConstructor
     public FogbugzStatePoller(String spec, String ciProject, String ciProjectField) throws ANTLRException {
         super(spec);
@@ -41,49 +73,143 @@ public class FogbugzStatePoller extends TimerTrigger {
         this.ciProjectField = ciProjectField;
     }
 
+    @DataBoundSetter
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    @DataBoundSetter
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Asks the {@link FogbugzPollCoordinator} for a poll, it searches for this job and the other jobs that watch
+     * the same field at once. In adaptive mode, ticks before the poll is due are skipped.
+     */
     @Override
     public void run() {
-        log.info("Running FogbugzStatePoller for project " + ciProject + ".");
-        FogbugzNotifier fb = new FogbugzNotifier();
-        FogbugzManager fbManager = fb.getFogbugzManager();
-        FogbugzEventListener fbListener = new FogbugzEventListener();
+        if (this.adaptive && !this.getSchedule().request(System.currentTimeMillis())) {
+            log.fine("Skipping FogbugzStatePoller for project " + ciProject + ", next poll is at "
+                    + this.getSchedule().getNextPoll() + ".");
+            return;
+        }
+        log.info("Requesting poll of FogbugzStatePoller for project " + ciProject + ".");
+        FogbugzPollCoordinator.get().request(this);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        FogbugzPollCoordinator.get().cancel(this);
+    }
+
+    /**
+     * Schedules the job for the cases found, unless they are queued or building already.
+     * The job to build is named after the CI project of the case in the configured field, as it always was,
+     * not in the field this poller searches on.
+     * @return Number of builds scheduled.
+     */
+    int processCases(FogbugzNotifier fb, FogbugzEventListener fbListener, List<FogbugzCase> cases) {
+        Job<?, ?> job = (Job<?, ?>) this.job;
+        FogbugzInFlightCases inFlight = FogbugzInFlightCases.get();
+        List<FogbugzCase> waiting = new ArrayList<FogbugzCase>();
+        for (FogbugzCase cs : cases) {
+            if (!inFlight.isInFlight(job, cs.getId())) {
+                waiting.add(cs);
+            }
+        }
+        Collection<String> responses;
+        if (fb.getFogbugzManager(this.ciProjectField) == fb.getFogbugzManager()) {
+            // The search fetched the cases already with the configured field, no need to fetch them one by one.
+            responses = fbListener.scheduleJobs(fb, waiting, job.getName(), null, false).values();
+        } else {
+            // The search read the field of this poller, fetch the cases again to read the configured one.
+            responses = new ArrayList<String>();
+            for (FogbugzCase cs : waiting) {
+                responses.add(fbListener.scheduleJob(fb, cs.getId(), job.getName(), null, null, false));
+            }
+        }
+        int scheduled = 0;
+        for (String response : responses) {
+            if (FogbugzEventListener.isScheduled(response)) {
+                scheduled++;
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * @return The search for all cases of this job.
+     */
+    String getQuery(String userName) {
+        return String.format("%s:\"%s\" assignedto:\"%s\"", this.ciProjectField, this.ciProject, userName);
+    }
 
-        doRun(fb, fbManager, fbListener);
+    /**
+     * @return The time from which edited cases are enough for the next poll, or 0 if it should be a full poll.
+     */
+    long getSince(String query, long now) {
+        FogbugzPollWatermark watermark = this.getWatermark();
+        if (!this.incremental || watermark == null || now - watermark.getLastFullPoll(query) >= FULL_POLL_INTERVAL) {
+            return 0;
+        }
+        return watermark.getSince(query);
+    }
 
+    /**
+     * Records a successful poll.
+     * @param searchTime How long the search took.
+     * @param scheduled Number of builds scheduled.
+     */
+    void polled(String query, long started, long searchTime, boolean full, int scheduled) {
+        FogbugzPollWatermark watermark = this.getWatermark();
+        if (this.incremental && watermark != null) {
+            watermark.update(query, started, full);
+        }
+        this.getSchedule().polled(System.currentTimeMillis(), searchTime, scheduled);
     }
 
-    public void doRun(FogbugzNotifier fb, FogbugzManager fbManager, FogbugzEventListener fbListener) {
-        FogbugzUser user = fbManager.getFogbugzUser(fbManager.getMergekeeperUserId());
+    /**
+     * Records a poll that failed, so an adaptive poller backs off.
+     */
+    void pollFailed() {
+        this.getSchedule().failed(System.currentTimeMillis());
+    }
 
-        List<FogbugzCase> cases;
-        try {
-            String query = "%s:\"%s\" assignedto:\"%s\"";
-            query = String.format(query, this.ciProjectField, this.ciProject, user.name);
-            cases = fbManager.searchForCases(query);
-        } catch (InvalidResponseException e) {
-            log.log(Level.SEVERE, "FogbugzStatePoller encountered an error while getting project list.");
-            log.log(Level.SEVERE, e.getMessage());
-            return;
-        } catch (NoSuchCaseException e) {
-            log.info("FogbugzStatePoller found no cases, not running.");
-            return;
+    /**
+     * @return Interval and statistics of the polls since Jenkins started.
+     */
+    public synchronized FogbugzPollSchedule getSchedule() {
+        if (this.schedule == null) {
+            this.schedule = new FogbugzPollSchedule();
         }
-        for (FogbugzCase cs : cases) {
-            Job job = (Job) this.job;
-            int case_id = cs.getId();
-            String case_id_string = case_id + "";
-            if (job.isBuilding()) {
-                try {
-                    EnvVars vars = job.getLastBuild().getEnvironment(new LogTaskListener(log, Level.INFO));
-                    if (vars.get("CASE_ID", "").trim().equals(case_id_string)) {
-                        continue;
-                    }
-                } catch (InterruptedException exc) {
-                } catch (IOException exc) {
-                }
-            }
-            fbListener.scheduleJob(fb, case_id, job.getName(), null, null, false);
+        return this.schedule;
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions() {
+        return Collections.singletonList(new FogbugzPollerAction(this.job, this));
+    }
+
+    /**
+     * @return Search condition for the cases edited since the time, less {@link #WATERMARK_OVERLAP}.
+     */
+    static String editedSince(long since) {
+        return editedSince(since, TimeZone.getTimeZone(TIME_ZONE));
+    }
+
+    static String editedSince(long since, TimeZone timeZone) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        format.setTimeZone(timeZone);
+        return " edited:\"" + format.format(new Date(since - WATERMARK_OVERLAP)) + "..\"";
+    }
+
+    private synchronized FogbugzPollWatermark getWatermark() {
+        if (this.watermark == null && this.job != null) {
+            this.watermark = new FogbugzPollWatermark(new File(this.job.getRootDir(), WATERMARK_FILE));
         }
+        return this.watermark;
     }
 
     @Extension
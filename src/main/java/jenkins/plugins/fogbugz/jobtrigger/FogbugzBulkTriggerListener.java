@@ -0,0 +1,216 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
+import lombok.extern.java.Log;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzManager;
+import org.paylogic.fogbugz.InvalidResponseException;
+import org.paylogic.fogbugz.NoSuchCaseException;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+/**
+ * HTTP endpoint that triggers builds for many cases at once, e.g. to queue a backlog again after an outage.
+ * Takes the same parameters as {@link FogbugzEventListener}, but with a list of at most {@link #MAX_IDS} case ids
+ * in 'caseids', and needs the build permission.
+ * Like single triggers, the cases go through the {@link FogbugzTriggerQueue}, and cases triggered moments ago are
+ * skipped; the response is a 202 with the URL to follow the trigger at. The cases are fetched with a single search
+ * per {@link #BATCH_SIZE} cases and scheduled without fetching them again. The outcome lists the result per case.
+ * The trigger runs as the user who sent it, so only the jobs that user can see are built.
+ */
+@Log
+@Extension
+public class FogbugzBulkTriggerListener implements RootAction {
+
+    /** Maximum number of cases in a single search. */
+    public static final int BATCH_SIZE = Integer.getInteger(FogbugzBulkTriggerListener.class.getName() + ".batchSize", 100);
+
+    /** Maximum number of cases per request. */
+    public static final int MAX_IDS = Integer.getInteger(FogbugzBulkTriggerListener.class.getName() + ".maxIds", 1000);
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Fogbugz Bulk Event Listener";
+    }
+
+    public String getUrlName() {
+        return "fbBulkTrigger";
+    }
+
+    /**
+     * @param caseids Case ids, separated by commas or whitespace.
+     */
+    public void doIndex(StaplerRequest req, StaplerResponse rsp, @QueryParameter(required = true) String caseids,
+                        @QueryParameter(required = false) final String jobname,
+                        @QueryParameter(required = false) final String jobnamepostfix,
+                        @QueryParameter(required = false) final String ciprojectfieldname) throws IOException {
+        Jenkins.getInstance().checkPermission(Item.BUILD);
+        rsp.setContentType("text/html");
+        final Set<Integer> ids = new LinkedHashSet<Integer>();
+        for (String id : caseids.split("[,\\s]+")) {
+            if (id.isEmpty()) {
+                continue;
+            }
+            try {
+                ids.add(Integer.parseInt(id));
+            } catch (NumberFormatException e) {
+                rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                rsp.getOutputStream().write(String.format("<html><body>Not a case id: %s</body></html>",
+                        Util.escape(id)).getBytes());
+                return;
+            }
+            if (ids.size() > MAX_IDS) {
+                rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                rsp.getOutputStream().write(String.format("<html><body>At most %d cases per request</body></html>",
+                        MAX_IDS).getBytes());
+                return;
+            }
+        }
+        log.info("Fogbugz bulk trigger received for " + ids.size() + " cases, processing...");
+
+        // Fogbugz often sends the same event a couple of times, the first one takes care of it.
+        final FogbugzTriggerThrottle throttle = FogbugzTriggerThrottle.get();
+        final Set<Integer> accepted = new LinkedHashSet<Integer>();
+        for (Integer id : ids) {
+            if (id < 1 || throttle.accept(id)) {
+                accepted.add(id);
+            }
+        }
+
+        // The queue runs the trigger on a thread of its own, which does not run as the user by itself.
+        final Authentication auth = Jenkins.getAuthentication();
+        FogbugzTriggerQueue.Trigger trigger = getTriggerQueue().submit(ids.size() + " cases", new Callable<String>() {
+            public String call() {
+                SecurityContext old = ACL.impersonate(auth);
+                try {
+                    return this.trigger();
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+            }
+
+            private String trigger() {
+                Map<Integer, String> responses = new LinkedHashMap<Integer, String>();
+                for (Integer id : ids) {
+                    responses.put(id, accepted.contains(id) ? null : FogbugzEventListener.DUPLICATE_RESPONSE);
+                }
+                Map<Integer, String> scheduled = scheduleJobs(new FogbugzNotifier(), accepted, jobname,
+                        jobnamepostfix, ciprojectfieldname, true);
+                for (Map.Entry<Integer, String> response : scheduled.entrySet()) {
+                    if (!FogbugzEventListener.isScheduled(response.getValue())) {
+                        // Let a retry of a trigger that did nothing through.
+                        throttle.forget(response.getKey());
+                    }
+                }
+                responses.putAll(scheduled);
+                return toHtml(responses);
+            }
+        });
+        if (trigger == null) {
+            for (Integer id : accepted) {
+                throttle.forget(id);
+            }
+            log.warning("Trigger queue is full, refusing bulk trigger for " + ids.size() + " cases.");
+        }
+        FogbugzEventListener.writeAccepted(req, rsp, trigger);
+    }
+
+    FogbugzTriggerQueue getTriggerQueue() {
+        return FogbugzTriggerQueue.get();
+    }
+
+    private static String toHtml(Map<Integer, String> responses) {
+        StringBuilder out = new StringBuilder("<html><body><ul>");
+        for (Map.Entry<Integer, String> response : responses.entrySet()) {
+            out.append("<li>").append(response.getKey()).append(": ")
+                    .append(FogbugzEventListener.getMessage(response.getValue())).append("</li>");
+        }
+        out.append("</ul></body></html>");
+        return out.toString();
+    }
+
+    /**
+     * Schedules the jobs of many cases.
+     * @return The response per case, in the order of the case ids.
+     */
+    public Map<Integer, String> scheduleJobs(FogbugzNotifier fbNotifier, Set<Integer> caseids, String jobname,
+                                             String jobnamepostfix, String ciprojectfieldname,
+                                             boolean sendNotification) {
+        Map<Integer, String> responses = new LinkedHashMap<Integer, String>();
+        for (Integer caseid : caseids) {
+            responses.put(caseid, caseid < 1 ? FogbugzEventListener.NO_CASE_FOUND_RESPONSE : null);
+        }
+
+        // Fetch all cases, a batch at a time.
+        FogbugzManager caseManager = FogbugzEventListener.getCaseManager(fbNotifier, ciprojectfieldname);
+        List<Integer> wanted = new ArrayList<Integer>();
+        for (Map.Entry<Integer, String> response : responses.entrySet()) {
+            if (response.getValue() == null) {
+                wanted.add(response.getKey());
+            }
+        }
+        List<FogbugzCase> cases = new ArrayList<FogbugzCase>();
+        for (int from = 0; from < wanted.size(); from += BATCH_SIZE) {
+            List<Integer> batch = wanted.subList(from, Math.min(wanted.size(), from + BATCH_SIZE));
+            try {
+                cases.addAll(caseManager.searchForCases("ixBug:" + join(batch)));
+            } catch (NoSuchCaseException e) {
+                log.log(Level.INFO, "None of the cases " + batch + " were found.");
+            } catch (InvalidResponseException e) {
+                log.log(Level.INFO, "Error searching for cases " + batch + ".", e);
+                for (Integer caseid : batch) {
+                    responses.put(caseid, FogbugzEventListener.FOGBUGZ_ERROR_RESPONSE);
+                }
+            }
+        }
+
+        List<FogbugzCase> requested = new ArrayList<FogbugzCase>();
+        for (FogbugzCase fbCase : cases) {
+            if (responses.containsKey(fbCase.getId())) {
+                requested.add(fbCase);
+            }
+        }
+        responses.putAll(new FogbugzEventListener().scheduleJobs(fbNotifier, requested, jobname, jobnamepostfix,
+                sendNotification));
+        log.info("Fogbugz bulk trigger found " + requested.size() + " cases.");
+
+        for (Map.Entry<Integer, String> response : responses.entrySet()) {
+            if (response.getValue() == null) {
+                response.setValue(FogbugzEventListener.NO_CASE_FOUND_RESPONSE);
+            }
+        }
+        return responses;
+    }
+
+    private static String join(List<Integer> ids) {
+        StringBuilder joined = new StringBuilder();
+        for (Integer id : ids) {
+            joined.append(joined.length() == 0 ? "" : ",").append(id);
+        }
+        return joined.toString();
+    }
+}
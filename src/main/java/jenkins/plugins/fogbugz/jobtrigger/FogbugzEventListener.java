@@ -2,19 +2,26 @@ package jenkins.plugins.fogbugz.jobtrigger;
 
 import hudson.Extension;
 import hudson.model.*;
-import jenkins.model.Jenkins;
 import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
 import lombok.extern.java.Log;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.paylogic.fogbugz.FogbugzCase;
 import org.paylogic.fogbugz.FogbugzManager;
 import org.paylogic.fogbugz.InvalidResponseException;
 import org.paylogic.fogbugz.NoSuchCaseException;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 
 
@@ -27,16 +34,32 @@ import java.util.logging.Level;
 @Extension
 public class FogbugzEventListener implements UnprotectedRootAction {
 
-    private static String NO_CASE_FOUND_RESPONSE = "<html><body>No case found</body></html>";
+    static String NO_CASE_FOUND_RESPONSE = "<html><body>No case found</body></html>";
 
-    private static String FOGBUGZ_ERROR_RESPONSE = "<html><body>Error communicating with fogbugz</body></html>";
+    static String FOGBUGZ_ERROR_RESPONSE = "<html><body>Error communicating with fogbugz</body></html>";
 
     private static String CASE_IS_AUTOCREATED_RESPONSE = "<html><body>Case is autocreated, skipping</body></html>";
 
     private static String CASE_IS_MERGED_RESPONSE = "<html><body>Case is already merged, skipping</body></html>";
 
+    private static String CASE_IS_QUEUED_RESPONSE = "<html><body>Case is queued already, skipping</body></html>";
+
     private static String OK_RESPONSE = "<html><body>Scheduled ok</body></html>";
 
+    static String DUPLICATE_RESPONSE = "<html><body>Case was triggered moments ago, skipping</body></html>";
+
+    private static String QUEUE_FULL_RESPONSE = "<html><body>Too many triggers waiting, try again later</body></html>";
+
+    private static String UNKNOWN_TRIGGER_RESPONSE = "<html><body>Unknown trigger</body></html>";
+
+    /** Seconds a client is asked to wait when the trigger queue is full. */
+    private static final int RETRY_AFTER = Integer.getInteger(FogbugzEventListener.class.getName() + ".retryAfter", 30);
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Also serves the status of triggers accepted by {@link FogbugzBulkTriggerListener}. */
+    static final String URL_NAME = "fbTrigger";
+
     private static String NOTHING_RESPONSE = "<html><body>Nothing was sceduled. Note that anonymous has to have a job READ permission.</body></html>";
 
     public String getIconFileName() {
@@ -48,36 +71,113 @@ public class FogbugzEventListener implements UnprotectedRootAction {
     }
 
     public String getUrlName() {
-        return "fbTrigger";
+        return URL_NAME;
     }
 
-    public void doIndex(StaplerResponse rsp, @QueryParameter(required = true) int caseid,
-                          @QueryParameter(required = false) String jobname,
-                          @QueryParameter(required = false) String jobnamepostfix,
-                          @QueryParameter(required = false) String ciprojectfieldname) throws IOException {
+    /**
+     * Accepts a trigger and processes it in the background, so Fogbugz does not have to wait for it.
+     * Answers 202 with the URL to follow the trigger at, or 429 if too many triggers are waiting already.
+     */
+    public void doIndex(StaplerRequest req, StaplerResponse rsp, @QueryParameter(required = true) final int caseid,
+                          @QueryParameter(required = false) final String jobname,
+                          @QueryParameter(required = false) final String jobnamepostfix,
+                          @QueryParameter(required = false) final String ciprojectfieldname) throws IOException {
         rsp.setContentType("text/html");
         log.info("Fogbugz URLTrigger received, processing...");
-        FogbugzNotifier fbNotifier = new FogbugzNotifier();
-        String response = scheduleJob(fbNotifier, caseid, jobname, jobnamepostfix, ciprojectfieldname, true);
-        rsp.getOutputStream().write(response.getBytes());
+        if (caseid < 1) {
+            rsp.getOutputStream().write(NO_CASE_FOUND_RESPONSE.getBytes());
+            return;
+        }
+        final FogbugzTriggerThrottle throttle = FogbugzTriggerThrottle.get();
+        if (!throttle.accept(caseid)) {
+            // Fogbugz often sends the same event a couple of times, the first one takes care of it.
+            log.info("Case " + caseid + " was triggered moments ago, skipping.");
+            rsp.getOutputStream().write(DUPLICATE_RESPONSE.getBytes());
+            return;
+        }
+
+        FogbugzTriggerQueue.Trigger trigger = getTriggerQueue().submit("case " + caseid, new Callable<String>() {
+            public String call() {
+                String response = scheduleJob(new FogbugzNotifier(), caseid, jobname, jobnamepostfix,
+                        ciprojectfieldname, true);
+                if (!response.equals(OK_RESPONSE)) {
+                    // Let a retry of a trigger that did nothing through.
+                    throttle.forget(caseid);
+                }
+                return response;
+            }
+        });
+        if (trigger == null) {
+            throttle.forget(caseid);
+            log.warning("Trigger queue is full, refusing trigger for case " + caseid + ".");
+        }
+        writeAccepted(req, rsp, trigger);
     }
 
+    /**
+     * Answers 202 with the URL to follow a queued trigger at, or 429 if the queue was full.
+     * @param trigger The queued trigger, null if the queue was full.
+     */
+    static void writeAccepted(StaplerRequest req, StaplerResponse rsp, FogbugzTriggerQueue.Trigger trigger)
+            throws IOException {
+        if (trigger == null) {
+            rsp.setStatus(SC_TOO_MANY_REQUESTS);
+            rsp.setHeader("Retry-After", Integer.toString(RETRY_AFTER));
+            rsp.getOutputStream().write(QUEUE_FULL_RESPONSE.getBytes());
+            return;
+        }
+        String statusUrl = req.getContextPath() + "/" + URL_NAME + "/status?id=" + trigger.getId();
+        rsp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        rsp.setHeader("Location", statusUrl);
+        rsp.getOutputStream().write(String.format("<html><body>Accepted, follow it at <a href='%s'>%s</a></body></html>",
+                statusUrl, statusUrl).getBytes());
+    }
+
+    /**
+     * Shows how far an accepted trigger got, and its outcome once it is done.
+     */
+    public void doStatus(StaplerResponse rsp, @QueryParameter(required = true) long id) throws IOException {
+        rsp.setContentType("text/html");
+        FogbugzTriggerQueue.Trigger trigger = getTriggerQueue().getTrigger(id);
+        if (trigger == null) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            rsp.getOutputStream().write(UNKNOWN_TRIGGER_RESPONSE.getBytes());
+            return;
+        }
+        if (trigger.getState() != FogbugzTriggerQueue.State.DONE) {
+            rsp.getOutputStream().write(String.format("<html><body>Trigger %d for %s is %s</body></html>",
+                    trigger.getId(), trigger.getSubject(), trigger.getState().name().toLowerCase()).getBytes());
+            return;
+        }
+        rsp.getOutputStream().write(trigger.getResponse().getBytes());
+    }
+
+    FogbugzTriggerQueue getTriggerQueue() {
+        return FogbugzTriggerQueue.get();
+    }
+
+    /**
+     * Schedules the job of a case. Triggers for the same case are handled one at a time.
+     */
     public String scheduleJob(FogbugzNotifier fbNotifier, int caseid, String jobname, String jobnamepostfix,
                               String ciprojectfieldname, boolean sendNotification) {
         if (caseid < 1) {
             return NO_CASE_FOUND_RESPONSE;
         }
 
-        if (jobnamepostfix == null) {
-            jobnamepostfix = "";
+        Lock lock = FogbugzTriggerThrottle.get().getLock(caseid);
+        lock.lock();
+        try {
+            return this.scheduleCaseJob(fbNotifier, caseid, jobname, jobnamepostfix, ciprojectfieldname,
+                    sendNotification);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        assert jobnamepostfix != null;
-
-        FogbugzManager caseManager = fbNotifier.getFogbugzManager();
-        if (ciprojectfieldname != null && !ciprojectfieldname.isEmpty()) {
-            caseManager.setCiProjectFieldName(ciprojectfieldname);
-        }
+    private String scheduleCaseJob(FogbugzNotifier fbNotifier, int caseid, String jobname, String jobnamepostfix,
+                                   String ciprojectfieldname, boolean sendNotification) {
+        FogbugzManager caseManager = getCaseManager(fbNotifier, ciprojectfieldname);
         FogbugzCase fbCase = null;
         try {
             fbCase = caseManager.getCaseById(caseid);
@@ -89,6 +189,70 @@ public class FogbugzEventListener implements UnprotectedRootAction {
             return FOGBUGZ_ERROR_RESPONSE;
         }
 
+        return this.scheduleJob(fbNotifier, fbCase, jobname, jobnamepostfix, sendNotification);
+    }
+
+    /**
+     * Schedules the job of a case that was fetched already.
+     */
+    public String scheduleJob(FogbugzNotifier fbNotifier, FogbugzCase fbCase, String jobname, String jobnamepostfix,
+                              boolean sendNotification) {
+        return this.scheduleJobs(fbNotifier, Collections.singletonList(fbCase), jobname, jobnamepostfix,
+                sendNotification).get(fbCase.getId());
+    }
+
+    /**
+     * Schedules the jobs of cases that were fetched already, e.g. by a search, without fetching them again.
+     * Every job is looked up once, and triggers for the same case are handled one at a time.
+     * @return The response per case, in the order of the cases.
+     */
+    public Map<Integer, String> scheduleJobs(FogbugzNotifier fbNotifier, Collection<FogbugzCase> cases,
+                                             String jobname, String jobnamepostfix, boolean sendNotification) {
+        Map<Integer, String> responses = new LinkedHashMap<Integer, String>();
+        Map<String, List<FogbugzCase>> casesByJob = new LinkedHashMap<String, List<FogbugzCase>>();
+        for (FogbugzCase fbCase : cases) {
+            String skipResponse = checkCase(fbNotifier, fbCase);
+            responses.put(fbCase.getId(), skipResponse);
+            if (skipResponse != null) {
+                continue;
+            }
+            String name = getJobName(fbCase, jobname, jobnamepostfix);
+            List<FogbugzCase> jobCases = casesByJob.get(name);
+            if (jobCases == null) {
+                jobCases = new ArrayList<FogbugzCase>();
+                casesByJob.put(name, jobCases);
+            }
+            jobCases.add(fbCase);
+        }
+
+        for (Map.Entry<String, List<FogbugzCase>> jobCases : casesByJob.entrySet()) {
+            log.log(Level.INFO, "Looking for job with name: " + jobCases.getKey());
+            Project<?, ?> p = FogbugzJobIndex.get().find(jobCases.getKey());
+            for (FogbugzCase fbCase : jobCases.getValue()) {
+                Lock lock = FogbugzTriggerThrottle.get().getLock(fbCase.getId());
+                lock.lock();
+                try {
+                    responses.put(fbCase.getId(), this.scheduleCase(fbNotifier, fbCase, p, sendNotification));
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return responses;
+    }
+
+    static FogbugzManager getCaseManager(FogbugzNotifier fbNotifier, String ciprojectfieldname) {
+        if (ciprojectfieldname != null && !ciprojectfieldname.isEmpty()) {
+            return fbNotifier.getFogbugzManager(ciprojectfieldname);
+        } else {
+            return fbNotifier.getFogbugzManager();
+        }
+    }
+
+    /**
+     * @return The response for a case that should not be built, or null if it can be built.
+     */
+    static String checkCase(FogbugzNotifier fbNotifier, FogbugzCase fbCase) {
         FogbugzNotifier.DescriptorImpl descriptor = fbNotifier.getDescriptor();
         String successfulBuildTag = (descriptor != null) ? descriptor.getSuccessfulBuildTag() : "";
 
@@ -99,6 +263,16 @@ public class FogbugzEventListener implements UnprotectedRootAction {
         else if (successfulBuildTag != null && !successfulBuildTag.isEmpty() && fbCase.getTags().contains(successfulBuildTag)) {
             return CASE_IS_MERGED_RESPONSE;
         }
+        return null;
+    }
+
+    /**
+     * @return Name of the job to build for the case: its CI project with the postfix, or else the given job name.
+     */
+    static String getJobName(FogbugzCase fbCase, String jobname, String jobnamepostfix) {
+        if (jobnamepostfix == null) {
+            jobnamepostfix = "";
+        }
 
         String ciProject = fbCase.getCiProject();
 
@@ -107,35 +281,52 @@ public class FogbugzEventListener implements UnprotectedRootAction {
         if (ciProject != null && !ciProject.isEmpty()) {
             jobname =  ciProject + jobnamepostfix;
         }
+        return jobname;
+    }
 
-        log.log(Level.INFO, "Looking for job with name: " + jobname);
-
-        // Search for Job that'll be triggered.
-        for (Project<?, ?> p: Jenkins.getInstance().getItems(Project.class)) {
-            if (p.getName().equals(jobname)) {
-                // Fetch default Parameters
-                final List<ParameterValue> parameters = new ArrayList<ParameterValue>();
-                ParametersDefinitionProperty property = p.getProperty(ParametersDefinitionProperty.class);
-                if (property != null) {
-                    for (final ParameterDefinition pd : property.getParameterDefinitions()) {
-                        final ParameterValue param = pd.getDefaultParameterValue();
-                        // Fill in CASE_ID
-                        if (pd.getName().equals("CASE_ID")) {  // Override CASE_ID param if it's there.
-                            parameters.add(new StringParameterValue("CASE_ID", Integer.toString(fbCase.getId())));
-                            // Else, just add the value already set.
-                        } else if (param != null) {
-                            parameters.add(param);
-                        }
+    /**
+     * Schedules a build of the job for a case that passed {@link #checkCase}.
+     * @param p The job, null if none was found.
+     */
+    String scheduleCase(FogbugzNotifier fbNotifier, FogbugzCase fbCase, Project<?, ?> p, boolean sendNotification) {
+        if (p != null) {
+            // The queued build picks up the latest changes, a running one may not have them yet.
+            if (FogbugzInFlightCases.get().isQueued(p, fbCase.getId())) {
+                return CASE_IS_QUEUED_RESPONSE;
+            }
+            // Fetch default Parameters
+            final List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+            ParametersDefinitionProperty property = p.getProperty(ParametersDefinitionProperty.class);
+            if (property != null) {
+                for (final ParameterDefinition pd : property.getParameterDefinitions()) {
+                    final ParameterValue param = pd.getDefaultParameterValue();
+                    // Fill in CASE_ID
+                    if (pd.getName().equals("CASE_ID")) {  // Override CASE_ID param if it's there.
+                        parameters.add(new StringParameterValue("CASE_ID", Integer.toString(fbCase.getId())));
+                        // Else, just add the value already set.
+                    } else if (param != null) {
+                        parameters.add(param);
                     }
                 }
-                // Here, we actually schedule the build.
-                p.scheduleBuild2(1, new FogbugzBuildCause(), new ParametersAction(parameters));
-                if (sendNotification) {
-                    fbNotifier.notifyScheduled(fbCase, p);
-                }
-                return OK_RESPONSE;
             }
+            // Here, we actually schedule the build.
+            p.scheduleBuild2(1, new FogbugzBuildCause(), new ParametersAction(parameters));
+            if (sendNotification) {
+                fbNotifier.notifyScheduled(fbCase, p);
+            }
+            return OK_RESPONSE;
         }
         return NOTHING_RESPONSE;
     }
+
+    public static boolean isScheduled(String response) {
+        return OK_RESPONSE.equals(response);
+    }
+
+    /**
+     * @return The message of a response, without the markup around it.
+     */
+    static String getMessage(String response) {
+        return response.replace("<html><body>", "").replace("</body></html>", "");
+    }
 }
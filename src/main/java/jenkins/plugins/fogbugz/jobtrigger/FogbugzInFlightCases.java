@@ -0,0 +1,357 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.WorkUnit;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the cases that are queued or being built, by the 'CASE_ID' parameter of the builds.
+ * Kept up to date as builds enter and leave the queue and start and finish, so checking a case does not have to
+ * look at the builds of the job. A build that left the queue but did not start within {@link #STARTING_TIMEOUT}
+ * is no longer counted, so a case does not stay in flight when no build came of it.
+ */
+@Log
+@Extension
+public class FogbugzInFlightCases extends QueueListener {
+
+    /** Time after which a build that left the queue but did not start is no longer counted. */
+    public static final long STARTING_TIMEOUT =
+            Long.getLong(FogbugzInFlightCases.class.getName() + ".startingTimeout", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * A build that left the queue but did not start yet.
+     */
+    private static final class Starting {
+        private final String key;
+        private final long left;
+
+        Starting(String key, long left) {
+            this.key = key;
+            this.left = left;
+        }
+    }
+
+    /** Queue item id to case key. */
+    private final Map<Long, String> queued = new HashMap<Long, String>();
+
+    /** Builds that left the queue but did not start yet, by queue item id, oldest first. */
+    private final Map<Long, Starting> starting = new LinkedHashMap<Long, Starting>();
+
+    /** Build id to case key. */
+    private final Map<String, String> running = new HashMap<String, String>();
+
+    /** Number of queued items per case key. */
+    private final Map<String, Integer> queuedCount = new HashMap<String, Integer>();
+
+    /** Number of queued, starting and running builds per case key. */
+    private final Map<String, Integer> inFlightCount = new HashMap<String, Integer>();
+
+    private boolean built;
+
+    /** Queue items that left and builds that finished while the index was filled, null otherwise. */
+    private Set<Long> leftWhileBuilding;
+    private Set<String> finishedWhileBuilding;
+
+    private final long startingTimeout;
+
+    public FogbugzInFlightCases() {
+        this(STARTING_TIMEOUT);
+    }
+
+    FogbugzInFlightCases(long startingTimeout) {
+        this.startingTimeout = startingTimeout;
+    }
+
+    public static FogbugzInFlightCases get() {
+        return Jenkins.getInstance().getExtensionList(QueueListener.class).get(FogbugzInFlightCases.class);
+    }
+
+    /**
+     * @return Whether a build of the job for the case is queued.
+     */
+    public boolean isQueued(Job<?, ?> job, int caseId) {
+        this.ensureBuilt();
+        synchronized (this) {
+            this.dropStale(System.currentTimeMillis());
+            return this.queuedCount.containsKey(key(job, Integer.toString(caseId)));
+        }
+    }
+
+    /**
+     * @return Whether a build of the job for the case is queued or running.
+     */
+    public boolean isInFlight(Job<?, ?> job, int caseId) {
+        this.ensureBuilt();
+        synchronized (this) {
+            this.dropStale(System.currentTimeMillis());
+            return this.inFlightCount.containsKey(key(job, Integer.toString(caseId)));
+        }
+    }
+
+    /**
+     * Fills the index from the queue and the executors. Until then, changes are ignored.
+     * The queue calls the listener with its lock held, so the queue is read without holding the lock of this.
+     * Changes are followed from the moment the reading starts; what leaves in the meantime is remembered, so the
+     * snapshot does not bring it back. Checks made while the index is filled may miss builds.
+     */
+    private void ensureBuilt() {
+        synchronized (this) {
+            if (this.built) {
+                return;
+            }
+            this.built = true;
+            this.leftWhileBuilding = new HashSet<Long>();
+            this.finishedWhileBuilding = new HashSet<String>();
+        }
+        List<Queue.Item> items = null;
+        List<Run<?, ?>> runs = new ArrayList<Run<?, ?>>();
+        try {
+            Jenkins jenkins = Jenkins.getInstance();
+            items = Arrays.asList(jenkins.getQueue().getItems());
+            for (Computer computer : jenkins.getComputers()) {
+                List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+                executors.addAll(computer.getOneOffExecutors());
+                for (Executor executor : executors) {
+                    Queue.Executable executable = executor.getCurrentExecutable();
+                    if (executable instanceof Run) {
+                        runs.add((Run<?, ?>) executable);
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (items != null) {
+                    for (Queue.Item item : items) {
+                        if (!this.leftWhileBuilding.contains((long) item.getId())) {
+                            this.addQueued(item);
+                        }
+                    }
+                    for (Run<?, ?> run : runs) {
+                        if (!this.finishedWhileBuilding.contains(run.getExternalizableId())) {
+                            this.addRunning(run);
+                        }
+                    }
+                    log.fine("Indexed " + this.inFlightCount.size() + " cases in flight.");
+                } else {
+                    // Try again next time.
+                    this.built = false;
+                }
+                this.leftWhileBuilding = null;
+                this.finishedWhileBuilding = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onEnterWaiting(Queue.WaitingItem item) {
+        if (this.built) {
+            this.addQueued(item);
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        this.left((long) item.getId(), item.isCancelled());
+    }
+
+    synchronized void left(long itemId, boolean cancelled) {
+        if (this.leftWhileBuilding != null) {
+            this.leftWhileBuilding.add(itemId);
+        }
+        String key = this.queued.remove(itemId);
+        if (key == null) {
+            return;
+        }
+        decrement(this.queuedCount, key);
+        if (cancelled) {
+            decrement(this.inFlightCount, key);
+        } else {
+            // Stays in flight until the build starts, or it is clear that it will not.
+            this.starting.put(itemId, new Starting(key, System.currentTimeMillis()));
+        }
+    }
+
+    void onStarted(Run<?, ?> run) {
+        this.onStarted(run, queueId(run));
+    }
+
+    synchronized void onStarted(Run<?, ?> run, long itemId) {
+        if (!this.built) {
+            return;
+        }
+        String key = key(run);
+        if (key == null || this.running.containsKey(run.getExternalizableId())) {
+            return;
+        }
+        if (!this.removeStarting(itemId, key)) {
+            // Not seen in the queue, or taken for stale.
+            increment(this.inFlightCount, key);
+        }
+        this.running.put(run.getExternalizableId(), key);
+    }
+
+    void onFinalized(Run<?, ?> run) {
+        this.onFinalized(run, queueId(run));
+    }
+
+    synchronized void onFinalized(Run<?, ?> run, long itemId) {
+        if (this.finishedWhileBuilding != null) {
+            this.finishedWhileBuilding.add(run.getExternalizableId());
+        }
+        String key = this.running.remove(run.getExternalizableId());
+        if (key == null) {
+            // Finished without being seen starting.
+            key = key(run);
+            if (key == null || !this.removeStarting(itemId, key)) {
+                return;
+            }
+        }
+        decrement(this.inFlightCount, key);
+    }
+
+    /**
+     * Stops counting builds that left the queue longer than the timeout ago without starting.
+     */
+    private void dropStale(long now) {
+        for (Iterator<Starting> it = this.starting.values().iterator(); it.hasNext(); ) {
+            Starting entry = it.next();
+            if (now - entry.left < this.startingTimeout) {
+                break;
+            }
+            it.remove();
+            decrement(this.inFlightCount, entry.key);
+            log.fine("Build for " + entry.key + " left the queue but did not start, no longer in flight.");
+        }
+    }
+
+    /**
+     * @param itemId Id of the queue item the build came from, or -1 if it is not known.
+     * @return false if the build was not starting.
+     */
+    private boolean removeStarting(long itemId, String key) {
+        if (itemId >= 0) {
+            return this.starting.remove(itemId) != null;
+        }
+        // Without the queue item, take the build of the case that left the queue first.
+        for (Iterator<Starting> it = this.starting.values().iterator(); it.hasNext(); ) {
+            if (it.next().key.equals(key)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addQueued(Queue.Item item) {
+        if (item.task instanceof Job) {
+            this.addQueued((long) item.getId(),
+                    key((Job<?, ?>) item.task, getCaseId(item.getAction(ParametersAction.class))));
+        }
+    }
+
+    synchronized void addQueued(long itemId, String key) {
+        if (key != null && !this.queued.containsKey(itemId)) {
+            this.queued.put(itemId, key);
+            increment(this.queuedCount, key);
+            increment(this.inFlightCount, key);
+        }
+    }
+
+    private void addRunning(Run<?, ?> run) {
+        String key = key(run);
+        if (key != null && !this.running.containsKey(run.getExternalizableId())) {
+            this.running.put(run.getExternalizableId(), key);
+            increment(this.inFlightCount, key);
+        }
+    }
+
+    /**
+     * @return Id of the queue item the run came from, or -1 if it is not known, e.g. when it is not on an executor.
+     */
+    private static long queueId(Run<?, ?> run) {
+        Executor executor = run.getExecutor();
+        WorkUnit workUnit = executor != null ? executor.getCurrentWorkUnit() : null;
+        return workUnit != null ? workUnit.context.item.getId() : -1;
+    }
+
+    private static String key(Run<?, ?> run) {
+        return key(run.getParent(), getCaseId(run.getAction(ParametersAction.class)));
+    }
+
+    static String key(Job<?, ?> job, String caseId) {
+        return caseId != null ? job.getFullName() + "#" + caseId : null;
+    }
+
+    private static String getCaseId(ParametersAction parameters) {
+        if (parameters == null) {
+            return null;
+        }
+        ParameterValue value = parameters.getParameter("CASE_ID");
+        if (!(value instanceof StringParameterValue) || ((StringParameterValue) value).value == null) {
+            return null;
+        }
+        String caseId = ((StringParameterValue) value).value.trim();
+        return caseId.isEmpty() ? null : caseId;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @return false if the key had no count.
+     */
+    private static boolean decrement(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count > 1) {
+            counts.put(key, count - 1);
+        } else {
+            counts.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Follows the builds as they start and finish.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            FogbugzInFlightCases.get().onStarted(run);
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            FogbugzInFlightCases.get().onFinalized(run);
+        }
+    }
+}
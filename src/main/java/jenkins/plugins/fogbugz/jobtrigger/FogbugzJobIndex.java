@@ -0,0 +1,149 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Project;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of the jobs by name, so triggers do not have to go through all jobs to find theirs.
+ * Covers the jobs in folders as well. Kept up to date as jobs are created, renamed, moved and deleted.
+ */
+@Log
+@Extension
+public class FogbugzJobIndex extends ItemListener {
+
+    /**
+     * Full names of the jobs per short name; names in different folders can be the same.
+     * Changed under the lock of this, a rebuild swaps in a new map so lookups never see it half filled.
+     */
+    private volatile Map<String, Set<String>> fullNames = new ConcurrentHashMap<String, Set<String>>();
+
+    private volatile boolean built;
+
+    public static FogbugzJobIndex get() {
+        return Jenkins.getInstance().getExtensionList(ItemListener.class).get(FogbugzJobIndex.class);
+    }
+
+    /**
+     * Finds a job by its full name, or by its short name if that is unique.
+     * If several jobs in different folders have the short name, the first by full name is used.
+     * @return The job, or null if there is none.
+     */
+    public Project<?, ?> find(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        if (name.contains("/")) {
+            return jenkins.getItemByFullName(name, Project.class);
+        }
+        this.ensureBuilt();
+        Set<String> candidates = this.fullNames.get(name);
+        if (candidates != null) {
+            for (String fullName : candidates) {
+                Project<?, ?> project = jenkins.getItemByFullName(fullName, Project.class);
+                if (project != null) {
+                    return project;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void ensureBuilt() {
+        if (!this.built) {
+            this.rebuild();
+        }
+    }
+
+    private synchronized void rebuild() {
+        Map<String, Set<String>> fullNames = new ConcurrentHashMap<String, Set<String>>();
+        for (Project<?, ?> project : Jenkins.getInstance().getAllItems(Project.class)) {
+            add(fullNames, project.getFullName());
+        }
+        this.fullNames = fullNames;
+        this.built = true;
+        log.fine("Indexed " + fullNames.size() + " job names.");
+    }
+
+    private synchronized void add(String fullName) {
+        add(this.fullNames, fullName);
+    }
+
+    private static void add(Map<String, Set<String>> fullNames, String fullName) {
+        String name = fullName.substring(fullName.lastIndexOf('/') + 1);
+        Set<String> names = fullNames.get(name);
+        if (names == null) {
+            names = new ConcurrentSkipListSet<String>();
+            fullNames.put(name, names);
+        }
+        names.add(fullName);
+    }
+
+    /**
+     * Removes an item and, for folders, everything in it.
+     */
+    private synchronized void remove(String fullName) {
+        String prefix = fullName + "/";
+        for (Iterator<Set<String>> sets = this.fullNames.values().iterator(); sets.hasNext(); ) {
+            Set<String> names = sets.next();
+            for (Iterator<String> it = names.iterator(); it.hasNext(); ) {
+                String name = it.next();
+                if (name.equals(fullName) || name.startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+            if (names.isEmpty()) {
+                sets.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onLoaded() {
+        this.rebuild();
+    }
+
+    @Override
+    public void onCreated(Item item) {
+        if (item instanceof Project) {
+            this.add(item.getFullName());
+        }
+        // A folder can come with jobs in it, e.g. when it is copied.
+        if (item instanceof ItemGroup) {
+            for (Project<?, ?> project : Items.getAllItems((ItemGroup<?>) item, Project.class)) {
+                this.add(project.getFullName());
+            }
+        }
+    }
+
+    @Override
+    public void onCopied(Item src, Item item) {
+        this.onCreated(item);
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        this.remove(item.getFullName());
+    }
+
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        // Called for every job in a renamed or moved folder as well.
+        if (item instanceof Project) {
+            this.remove(oldFullName);
+            this.add(newFullName);
+        }
+    }
+}
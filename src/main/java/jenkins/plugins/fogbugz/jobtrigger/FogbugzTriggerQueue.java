@@ -0,0 +1,123 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Bounded queue of accepted triggers, so the HTTP request of a trigger does not wait for Fogbugz.
+ * The outcome of recent triggers is kept, so they can be followed through their id.
+ */
+@Log
+public class FogbugzTriggerQueue {
+
+    /** Number of threads processing triggers. */
+    public static final int WORKERS = Integer.getInteger(FogbugzTriggerQueue.class.getName() + ".workers", 2);
+
+    /** Maximum number of triggers waiting to be processed, more are refused. */
+    public static final int CAPACITY = Integer.getInteger(FogbugzTriggerQueue.class.getName() + ".capacity", 500);
+
+    /** Number of recent triggers whose outcome is kept. */
+    public static final int HISTORY = Integer.getInteger(FogbugzTriggerQueue.class.getName() + ".history", 1000);
+
+    /** Outcome of a trigger that threw, the exception itself is only logged. */
+    static final String FAILED_RESPONSE = "<html><body>Trigger failed, see the Jenkins log</body></html>";
+
+    private static final FogbugzTriggerQueue INSTANCE = new FogbugzTriggerQueue(WORKERS, CAPACITY);
+
+    public enum State {
+        QUEUED, RUNNING, DONE
+    }
+
+    /**
+     * An accepted trigger, and how far it got.
+     */
+    public static final class Trigger {
+        @Getter private final long id;
+        /** What the trigger is for, e.g. "case 7". */
+        @Getter private final String subject;
+        @Getter private volatile State state = State.QUEUED;
+        /** Outcome of the trigger, once it is done. */
+        @Getter private volatile String response;
+
+        Trigger(long id, String subject) {
+            this.id = id;
+            this.subject = subject;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /** Oldest first, at most {@link #HISTORY} of them. Guarded by itself. */
+    private final Map<Long, Trigger> recent = new LinkedHashMap<Long, Trigger>();
+
+    FogbugzTriggerQueue(int workers, int capacity) {
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), "FogbugzTriggerQueue"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static FogbugzTriggerQueue get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the work of a trigger.
+     * @param work Processes the trigger, and returns its outcome.
+     * @return The queued trigger, or null if the queue is full.
+     */
+    public Trigger submit(String subject, final Callable<String> work) {
+        final Trigger trigger = new Trigger(this.nextId.getAndIncrement(), subject);
+        try {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    trigger.state = State.RUNNING;
+                    try {
+                        trigger.response = work.call();
+                    } catch (Exception e) {
+                        log.log(Level.WARNING, "Trigger for " + trigger.subject + " failed.", e);
+                        trigger.response = FAILED_RESPONSE;
+                    } finally {
+                        trigger.state = State.DONE;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        synchronized (this.recent) {
+            this.recent.put(trigger.id, trigger);
+            if (this.recent.size() > HISTORY) {
+                this.recent.remove(this.recent.keySet().iterator().next());
+            }
+        }
+        return trigger;
+    }
+
+    /**
+     * @return The trigger with the id, or null if it is unknown or too old.
+     */
+    public Trigger getTrigger(long id) {
+        synchronized (this.recent) {
+            return this.recent.get(id);
+        }
+    }
+
+    public int getQueued() {
+        return this.executor.getQueue().size();
+    }
+}
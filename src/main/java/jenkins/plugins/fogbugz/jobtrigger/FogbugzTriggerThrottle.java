@@ -0,0 +1,91 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps triggers for the same case from tripping over each other.
+ * Repeated triggers for a case within {@link #DEBOUNCE_WINDOW} are collapsed into the first one,
+ * and triggers for the same case are processed one at a time, using a fixed set of locks shared by all cases.
+ */
+public class FogbugzTriggerThrottle {
+
+    /** Time in which repeated triggers for a case are ignored. */
+    public static final long DEBOUNCE_WINDOW =
+            Long.getLong(FogbugzTriggerThrottle.class.getName() + ".debounceWindow", TimeUnit.SECONDS.toMillis(10));
+
+    private static final int STRIPES = 64;
+
+    /** Cleaning up old entries is only worth it above this size. */
+    private static final int CLEANUP_SIZE = 1024;
+
+    private static final FogbugzTriggerThrottle INSTANCE = new FogbugzTriggerThrottle(DEBOUNCE_WINDOW);
+
+    private final long window;
+
+    /** When each case was last accepted, in nanoseconds. */
+    private final ConcurrentMap<Integer, Long> accepted = new ConcurrentHashMap<Integer, Long>();
+
+    private final Lock[] locks = new Lock[STRIPES];
+
+    FogbugzTriggerThrottle(long window) {
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    public static FogbugzTriggerThrottle get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return false if the case was triggered less than the debounce window ago, and this trigger can be skipped.
+     */
+    public boolean accept(int caseId) {
+        long now = System.nanoTime();
+        if (this.accepted.size() > CLEANUP_SIZE) {
+            this.cleanup(now);
+        }
+        while (true) {
+            Long last = this.accepted.putIfAbsent(caseId, now);
+            if (last == null) {
+                return true;
+            }
+            if (now - last < this.window) {
+                return false;
+            }
+            if (this.accepted.replace(caseId, last, now)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forgets that a case was triggered, so the next trigger is not skipped. Use this when the trigger failed.
+     */
+    public void forget(int caseId) {
+        this.accepted.remove(caseId);
+    }
+
+    private void cleanup(long now) {
+        for (Iterator<Map.Entry<Integer, Long>> it = this.accepted.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue() >= this.window) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The lock to hold while processing a trigger for the case. Other cases may share it.
+     */
+    public Lock getLock(int caseId) {
+        int hash = caseId * 0x9E3779B9;
+        return this.locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
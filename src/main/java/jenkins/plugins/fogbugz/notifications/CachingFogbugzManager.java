@@ -0,0 +1,83 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzEvent;
+import org.paylogic.fogbugz.FogbugzManager;
+import org.paylogic.fogbugz.InvalidResponseException;
+import org.paylogic.fogbugz.NoSuchCaseException;
+
+/**
+ * FogbugzManager that serves {@link #getCaseById(int)} and {@link #getLastAssignedTo(int, int)}
+ * from a {@link FogbugzCaseCache}. Cases it saves are dropped from the cache, and so is the last assignment to the
+ * user they are assigned to, the only one a save can change. Cached cases can be a while old and
+ * saving a case sends all of it, so code that edits a case should fetch it with {@link #getCaseForEdit}.
+ */
+public class CachingFogbugzManager extends FogbugzManager {
+
+    private final FogbugzCaseCache cache;
+    private final String ciProjectFieldName;
+
+    public CachingFogbugzManager(FogbugzCaseCache cache, String url, String token, String featureBranchFieldname,
+                                 String originalBranchFieldname, String targetBranchFieldname,
+                                 String approvedRevisionFieldname, String ciProjectFieldName,
+                                 int mergekeeperUserId, int gatekeeperUserId) {
+        super(url, token, featureBranchFieldname, originalBranchFieldname, targetBranchFieldname,
+                approvedRevisionFieldname, ciProjectFieldName, mergekeeperUserId, gatekeeperUserId);
+        this.cache = cache;
+        this.ciProjectFieldName = ciProjectFieldName;
+    }
+
+    @Override
+    public FogbugzCase getCaseById(int id) throws InvalidResponseException, NoSuchCaseException {
+        FogbugzCase fbCase = this.cache.get(this.ciProjectFieldName, id);
+        if (fbCase == null) {
+            fbCase = super.getCaseById(id);
+            if (fbCase != null) {
+                this.cache.put(this.ciProjectFieldName, fbCase);
+            }
+        }
+        return fbCase;
+    }
+
+    /**
+     * Fetches a case from Fogbugz, bypassing the cache. Use this for cases that will be edited.
+     */
+    public FogbugzCase getUncachedCaseById(int id) throws InvalidResponseException, NoSuchCaseException {
+        return super.getCaseById(id);
+    }
+
+    /**
+     * Fetches a case that will be edited and saved, bypassing the cache of a caching manager, so recent changes
+     * made in Fogbugz are not overwritten.
+     */
+    public static FogbugzCase getCaseForEdit(FogbugzManager manager, int id)
+            throws InvalidResponseException, NoSuchCaseException {
+        if (manager instanceof CachingFogbugzManager) {
+            return ((CachingFogbugzManager) manager).getUncachedCaseById(id);
+        }
+        return manager.getCaseById(id);
+    }
+
+    @Override
+    public FogbugzEvent getLastAssignedTo(int caseId, int userId) {
+        FogbugzEvent event = this.cache.getLastAssignment(caseId, userId);
+        if (event != null) {
+            return event;
+        }
+        event = super.getLastAssignedTo(caseId, userId);
+        if (event != null) {
+            // Nothing found may also mean the lookup failed, so that is not cached.
+            this.cache.putLastAssignment(caseId, userId, event);
+        }
+        return event;
+    }
+
+    @Override
+    public boolean saveCase(FogbugzCase fbCase, String comment) {
+        try {
+            return super.saveCase(fbCase, comment);
+        } finally {
+            this.cache.invalidate(fbCase.getId(), fbCase.getAssignedTo());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import lombok.Getter;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzEvent;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of Fogbugz cases, with a maximum age per case.
+ * Cases are cached per CI project field, as the field decides what ends up in {@link FogbugzCase#getCiProject()}.
+ * Cases are copied going in and coming out, so callers never share or change the cached ones.
+ * Next to the cases, it keeps the last assignment of a case to a user, which takes a download of the whole
+ * case history to find out. Only assignments that were found are kept, as a lookup that finds nothing may have
+ * failed.
+ */
+public class FogbugzCaseCache {
+
+    private static final class Key {
+        private final String ciProjectFieldName;
+        private final int caseId;
+
+        Key(String ciProjectFieldName, int caseId) {
+            this.ciProjectFieldName = ciProjectFieldName;
+            this.caseId = caseId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.caseId == other.caseId && (this.ciProjectFieldName == null
+                    ? other.ciProjectFieldName == null : this.ciProjectFieldName.equals(other.ciProjectFieldName));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.caseId + (this.ciProjectFieldName == null ? 0 : this.ciProjectFieldName.hashCode());
+        }
+    }
+
+    private static final class Entry {
+        private final FogbugzCase fbCase;
+        private final long fetched;
+
+        Entry(FogbugzCase fbCase, long fetched) {
+            this.fbCase = fbCase;
+            this.fetched = fetched;
+        }
+    }
+
+    private static final class AssignmentEntry {
+        private final FogbugzEvent event;
+        private final long fetched;
+
+        AssignmentEntry(FogbugzEvent event, long fetched) {
+            this.event = event;
+            this.fetched = fetched;
+        }
+    }
+
+    /** Maximum age of a cached case in seconds, 0 disables the cache. */
+    @Getter private final int ttl;
+    @Getter private final int maxSize;
+
+    private final Map<Key, Entry> entries;
+
+    /** Last assignment per case and user, the user id takes the place of the CI project field in the key. */
+    private final Map<Key, AssignmentEntry> assignments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FogbugzCaseCache(int ttl, int maxSize) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        this.assignments = new LinkedHashMap<Key, AssignmentEntry>(16, 0.75f, true);
+    }
+
+    /**
+     * Drops the least recently used entries above the maximum size.
+     * @return Number of entries dropped.
+     */
+    private int trim(Map<Key, ?> map) {
+        int dropped = 0;
+        for (Iterator<Key> it = map.keySet().iterator(); map.size() > this.maxSize && it.hasNext(); dropped++) {
+            it.next();
+            it.remove();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return The cached case, or null if it is not cached or too old.
+     */
+    public synchronized FogbugzCase get(String ciProjectFieldName, int caseId) {
+        Key key = new Key(ciProjectFieldName, caseId);
+        Entry entry = this.entries.get(key);
+        if (entry != null && System.nanoTime() - entry.fetched > TimeUnit.SECONDS.toNanos(this.ttl)) {
+            this.entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return copy(entry.fbCase);
+    }
+
+    public synchronized void put(String ciProjectFieldName, FogbugzCase fbCase) {
+        if (this.ttl <= 0 || this.maxSize <= 0) {
+            return;
+        }
+        this.entries.put(new Key(ciProjectFieldName, fbCase.getId()), new Entry(copy(fbCase), System.nanoTime()));
+        this.evictions.addAndGet(this.trim(this.entries));
+    }
+
+    static FogbugzCase copy(FogbugzCase fbCase) {
+        StringBuilder tags = new StringBuilder();
+        for (String tag : fbCase.getTags()) {
+            tags.append(tags.length() == 0 ? "" : ",").append(tag);
+        }
+        return new FogbugzCase(fbCase.getId(), fbCase.getTitle(), fbCase.getOpenedBy(), fbCase.getAssignedTo(),
+                tags.toString(), fbCase.isOpen(), fbCase.getFeatureBranch(), fbCase.getOriginalBranch(),
+                fbCase.getTargetBranch(), fbCase.getApprovedRevision(), fbCase.getCiProject(), fbCase.getMilestone());
+    }
+
+    /**
+     * @return The cached last assignment of the case to the user, or null if it is not cached or too old.
+     */
+    public synchronized FogbugzEvent getLastAssignment(int caseId, int userId) {
+        Key key = new Key(Integer.toString(userId), caseId);
+        AssignmentEntry entry = this.assignments.get(key);
+        if (entry != null && System.nanoTime() - entry.fetched > TimeUnit.SECONDS.toNanos(this.ttl)) {
+            this.assignments.remove(key);
+            entry = null;
+        }
+        // Not counted in the hits and misses, those are for the cases.
+        return entry != null ? entry.event : null;
+    }
+
+    /**
+     * @param event Last assignment of the case to the user.
+     */
+    public synchronized void putLastAssignment(int caseId, int userId, FogbugzEvent event) {
+        if (this.ttl <= 0 || this.maxSize <= 0) {
+            return;
+        }
+        this.assignments.put(new Key(Integer.toString(userId), caseId), new AssignmentEntry(event, System.nanoTime()));
+        this.trim(this.assignments);
+    }
+
+    /**
+     * Forgets a case for all CI project fields, e.g. because it was just edited.
+     * @param assignedTo The user the case is assigned to now, a later assignment to that user may have been added.
+     */
+    public synchronized void invalidate(int caseId, int assignedTo) {
+        for (Iterator<Key> it = this.entries.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().caseId == caseId) {
+                it.remove();
+            }
+        }
+        this.assignments.remove(new Key(Integer.toString(assignedTo), caseId));
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+}
@@ -0,0 +1,42 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.paylogic.fogbugz.FogbugzManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which milestones are known to exist in Fogbugz, so they are not looked up on every successful build.
+ * A milestone is checked again once it has not been checked for {@link #REFRESH} milliseconds,
+ * in case it was removed in Fogbugz in the meantime.
+ */
+public class FogbugzMilestoneCache {
+
+    public static final long REFRESH =
+            Long.getLong(FogbugzMilestoneCache.class.getName() + ".refresh", TimeUnit.HOURS.toMillis(1));
+
+    /** Time each milestone was last checked, by name. */
+    private final ConcurrentMap<String, Long> checked = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Creates the milestone in Fogbugz, unless it was checked recently.
+     */
+    public void ensureExists(FogbugzManager caseManager, String milestoneName) {
+        Long lastChecked = this.checked.get(milestoneName);
+        long now = System.currentTimeMillis();
+        if (lastChecked != null && now - lastChecked < REFRESH) {
+            return;
+        }
+        caseManager.createMilestoneIfNotExists(milestoneName);
+        this.checked.put(milestoneName, now);
+    }
+
+    public int getSize() {
+        return this.checked.size();
+    }
+
+    public void clear() {
+        this.checked.clear();
+    }
+}
@@ -0,0 +1,407 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the reports in the {@link FogbugzNotificationOutbox}, so they survive a restart.
+ * Every report gets an 'added' record when it is queued and a 'done' record when it is no longer needed.
+ * Records are written by a single writer thread that syncs a whole batch of records to disk at once,
+ * so many builds finishing at the same time only pay for one fsync.
+ * Every record is framed with its length and a CRC, and replay stops at the first record that is not intact.
+ * When a write fails, the journal is cut back to the last complete record before more records are written.
+ */
+@Log
+public class FogbugzNotificationJournal {
+
+    private static final byte ADDED = 1;
+    private static final byte DONE = 2;
+
+    private static final int MAX_BATCH = 256;
+
+    /** Largest record that is written or read back, reports are far smaller as their message is bounded. */
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A report read back from the journal.
+     */
+    public static final class Entry {
+        @Getter private final long sequence;
+        @Getter private final FogbugzReport report;
+
+        Entry(long sequence, FogbugzReport report) {
+            this.sequence = sequence;
+            this.report = report;
+        }
+    }
+
+    private static final class Record {
+        private final byte type;
+        private final long sequence;
+        private final FogbugzReport report;
+        private final CountDownLatch written = new CountDownLatch(1);
+        private IOException error;
+
+        Record(byte type, long sequence, FogbugzReport report) {
+            this.type = type;
+            this.sequence = sequence;
+            this.report = report;
+        }
+    }
+
+    @Getter private final File file;
+
+    private final BlockingQueue<Record> records = new LinkedBlockingQueue<Record>();
+
+    /** Sequence numbers that were added but are not done yet, only used by the writer thread. */
+    private final Set<Long> live = new HashSet<Long>();
+
+    private long nextSequence;
+    private Thread writer;
+
+    public FogbugzNotificationJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads back all reports that were added but not done yet, oldest first, and starts the journal.
+     * The journal is rewritten to contain only those reports.
+     */
+    public synchronized List<Entry> open() throws IOException {
+        if (this.writer != null) {
+            throw new IllegalStateException("Journal " + this.file + " is already open.");
+        }
+        Map<Long, FogbugzReport> pending = read();
+
+        this.file.getParentFile().mkdirs();
+        File compacted = new File(this.file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(compacted);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            for (Map.Entry<Long, FogbugzReport> entry : pending.entrySet()) {
+                write(out, new Record(ADDED, entry.getKey(), entry.getValue()));
+            }
+            out.flush();
+            fos.getChannel().force(false);
+        } finally {
+            fos.close();
+        }
+        Files.move(compacted.toPath(), this.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<Long, FogbugzReport> entry : pending.entrySet()) {
+            entries.add(new Entry(entry.getKey(), entry.getValue()));
+            this.live.add(entry.getKey());
+            this.nextSequence = Math.max(this.nextSequence, entry.getKey() + 1);
+        }
+
+        this.writer = new Thread(new Writer(),
+                "FogbugzNotificationJournal writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        return entries;
+    }
+
+    /**
+     * Adds a report to the journal, and waits until it is on disk.
+     * @return Sequence number of the report, to be passed to {@link #done(long)}.
+     */
+    public long add(FogbugzReport report) throws IOException, InterruptedException {
+        Record record;
+        synchronized (this) {
+            if (this.writer == null) {
+                throw new IllegalStateException("Journal " + this.file + " is not open.");
+            }
+            record = new Record(ADDED, this.nextSequence++, report);
+        }
+        this.records.add(record);
+        record.written.await();
+        if (record.error != null) {
+            throw record.error;
+        }
+        return record.sequence;
+    }
+
+    /**
+     * Marks a report as done, so it is not replayed after a restart. Does not wait for the disk.
+     */
+    public void done(long sequence) {
+        this.records.add(new Record(DONE, sequence, null));
+    }
+
+    private Map<Long, FogbugzReport> read() throws IOException {
+        Map<Long, FogbugzReport> pending = new LinkedHashMap<Long, FogbugzReport>();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        } catch (FileNotFoundException e) {
+            return pending;
+        }
+        try {
+            byte[] payload;
+            while ((payload = this.readRecord(in)) != null) {
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+                try {
+                    int type = data.read();
+                    long sequence = data.readLong();
+                    if (type == ADDED) {
+                        pending.put(sequence, readReport(data));
+                    } else if (type == DONE) {
+                        pending.remove(sequence);
+                    } else {
+                        log.log(Level.WARNING, "Unknown record in " + this.file + ", ignoring the rest of it.");
+                        break;
+                    }
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Corrupt record in " + this.file + ", ignoring the rest of it.", e);
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return pending;
+    }
+
+    /**
+     * @return The payload of the next record, or null at the end of the journal or at a record that is not intact.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_RECORD) {
+            log.log(Level.WARNING, "Record of " + length + " bytes in " + this.file + ", ignoring the rest of it.");
+            return null;
+        }
+        byte[] payload = new byte[length];
+        int crc;
+        try {
+            in.readFully(payload);
+            crc = in.readInt();
+        } catch (EOFException e) {
+            // The controller went down while writing the last record, it was never confirmed so just skip it.
+            log.log(Level.INFO, "Incomplete record at the end of " + this.file + ", ignoring it.");
+            return null;
+        }
+        if (crc != crc(payload)) {
+            log.log(Level.WARNING, "Record with a wrong checksum in " + this.file + ", ignoring the rest of it.");
+            return null;
+        }
+        return payload;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static void write(DataOutputStream out, Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(record.type);
+        data.writeLong(record.sequence);
+        if (record.type == ADDED) {
+            data.writeInt(record.report.getCaseId());
+            data.writeBoolean(record.report.isSuccessful());
+            writeString(data, record.report.getMessage());
+            writeString(data, record.report.getBuildUrl());
+            data.writeInt(record.report.getTags().size());
+            for (String tag : record.report.getTags()) {
+                writeString(data, tag);
+            }
+            data.writeBoolean(record.report.isSetMilestone());
+        }
+        byte[] payload = bytes.toByteArray();
+        if (payload.length > MAX_RECORD) {
+            throw new IOException("Report for case " + record.report.getCaseId() + " is too large for the journal.");
+        }
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(crc(payload));
+    }
+
+    private static FogbugzReport readReport(DataInputStream in) throws IOException {
+        int caseId = in.readInt();
+        boolean successful = in.readBoolean();
+        String message = readString(in);
+        String buildUrl = readString(in);
+        int tagCount = in.readInt();
+        if (tagCount < 0 || tagCount > in.available()) {
+            throw new IOException("Corrupt tag count " + tagCount + ".");
+        }
+        List<String> tags = new ArrayList<String>(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            tags.add(readString(in));
+        }
+        boolean setMilestone = in.readBoolean();
+        return new FogbugzReport(caseId, successful, message, buildUrl, tags, setMilestone);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param in Reads a single record, so it knows how many bytes are left.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Corrupt string length " + length + ".");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Writes records in batches, one fsync per batch.
+     */
+    private class Writer implements Runnable {
+        private FileOutputStream fos;
+        private DataOutputStream out;
+
+        /** Length of the journal up to the last complete record. */
+        private long length;
+
+        /** Done records of a batch that failed, written with the next batch. */
+        private final List<Record> failedDone = new ArrayList<Record>();
+
+        Writer() throws IOException {
+            this.length = file.length();
+            this.open();
+        }
+
+        private void open() throws IOException {
+            FileOutputStream fos = new FileOutputStream(file, true);
+            try {
+                fos.getChannel().truncate(this.length);
+            } catch (IOException e) {
+                fos.close();
+                throw e;
+            }
+            this.fos = fos;
+            this.out = new DataOutputStream(new BufferedOutputStream(fos));
+        }
+
+        /**
+         * Throws away whatever part of a failed batch was buffered or written, so later records follow the last
+         * complete one. If the journal cannot be opened again, the next batch tries again.
+         */
+        private void reopen() {
+            try {
+                this.fos.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Failed to close " + file + ".", e);
+            }
+            this.fos = null;
+            this.out = null;
+            try {
+                this.open();
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Cannot open " + file + " again.", e);
+            }
+        }
+
+        public void run() {
+            List<Record> batch = new ArrayList<Record>();
+            while (true) {
+                Record next;
+                try {
+                    next = records.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch.addAll(this.failedDone);
+                this.failedDone.clear();
+                batch.add(next);
+                records.drainTo(batch, MAX_BATCH - 1);
+                try {
+                    if (this.out == null) {
+                        this.reopen();
+                        if (this.out == null) {
+                            throw new IOException("Journal " + file + " is not open.");
+                        }
+                    }
+                    for (Record record : batch) {
+                        write(this.out, record);
+                        if (record.type == ADDED) {
+                            live.add(record.sequence);
+                        } else {
+                            live.remove(record.sequence);
+                        }
+                    }
+                    this.out.flush();
+                    if (live.isEmpty()) {
+                        // Nothing left to replay, start over so the journal does not keep growing.
+                        this.fos.getChannel().truncate(0);
+                    }
+                    this.fos.getChannel().force(false);
+                    this.length = this.fos.getChannel().size();
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Failed to write to " + file + ".", e);
+                    for (Record record : batch) {
+                        if (record.type == ADDED) {
+                            live.remove(record.sequence);
+                            record.error = e;
+                        } else {
+                            this.failedDone.add(record);
+                        }
+                    }
+                    if (this.fos != null) {
+                        this.reopen();
+                    }
+                } finally {
+                    for (Record record : batch) {
+                        record.written.countDown();
+                    }
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
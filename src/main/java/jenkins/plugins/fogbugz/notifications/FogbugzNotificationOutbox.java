@@ -0,0 +1,366 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Outbox for build status reports, so finished builds do not wait for Fogbugz.
+ * Reports are delivered by a small pool of worker threads. Reports for the same case are delivered one at a time,
+ * in the order they were enqueued; reports for different cases are delivered in parallel.
+ * Queued reports are kept in a {@link FogbugzNotificationJournal} under JENKINS_HOME until they are delivered,
+ * and failed deliveries are retried with an exponential backoff.
+ * Delivery of a case waits a short while after its first report, and all reports for the case that are waiting
+ * by then are merged into a single case edit.
+ */
+@Log
+public class FogbugzNotificationOutbox {
+
+    /** Maximum number of threads talking to Fogbugz at the same time. */
+    public static final int WORKERS = Integer.getInteger(FogbugzNotificationOutbox.class.getName() + ".workers", 4);
+
+    /** Maximum number of reports waiting for delivery, builds deliver their report themselves above this. */
+    public static final int MAX_PENDING =
+            Integer.getInteger(FogbugzNotificationOutbox.class.getName() + ".maxPending", 1000);
+
+    /** Time to wait for more reports on the same case before delivering. */
+    public static final long COALESCE_WINDOW =
+            Long.getLong(FogbugzNotificationOutbox.class.getName() + ".coalesceWindow", TimeUnit.SECONDS.toMillis(2));
+
+    /** Number of times a report is tried before it is dropped. */
+    public static final int MAX_ATTEMPTS =
+            Integer.getInteger(FogbugzNotificationOutbox.class.getName() + ".maxAttempts", 8);
+
+    /** Delay before the first retry, doubled for every following one. */
+    public static final long RETRY_DELAY =
+            Long.getLong(FogbugzNotificationOutbox.class.getName() + ".retryDelay", TimeUnit.SECONDS.toMillis(5));
+
+    /** Upper bound on the delay between two attempts. */
+    public static final long MAX_RETRY_DELAY =
+            Long.getLong(FogbugzNotificationOutbox.class.getName() + ".maxRetryDelay", TimeUnit.MINUTES.toMillis(10));
+
+    private final FogbugzNotifier.DescriptorImpl descriptor;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private volatile FogbugzNotificationJournal journal;
+    private boolean journalOpened;
+
+    /** Reports per case, the head of each queue is the one being delivered. Guarded by this. */
+    private final Map<Integer, Deque<Pending>> pendingByCase = new HashMap<Integer, Deque<Pending>>();
+    private int pending;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger retrying = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public FogbugzNotificationOutbox(FogbugzNotifier.DescriptorImpl descriptor) {
+        this.descriptor = descriptor;
+        this.executor = new ScheduledThreadPoolExecutor(WORKERS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "FogbugzNotificationOutbox"));
+        this.executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Opens the journal and queues the reports that were not delivered before the last shutdown.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void recover() {
+        new FogbugzNotifier().getDescriptor().getOutbox().ensureJournalOpen();
+    }
+
+    private synchronized FogbugzNotificationJournal ensureJournalOpen() {
+        if (this.journalOpened) {
+            return this.journal;
+        }
+        this.journalOpened = true;
+        FogbugzNotificationJournal journal = new FogbugzNotificationJournal(
+                new File(Jenkins.getInstance().getRootDir(), "fogbugz/notification-outbox.journal"));
+        try {
+            List<FogbugzNotificationJournal.Entry> entries = journal.open();
+            if (!entries.isEmpty()) {
+                log.info("Replaying " + entries.size() + " Fogbugz reports that were not delivered yet.");
+            }
+            for (FogbugzNotificationJournal.Entry entry : entries) {
+                this.pending++;
+                schedule(new Pending(entry.getSequence(), entry.getReport()));
+            }
+            this.journal = journal;
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Cannot open " + journal.getFile() + ", reports will not survive a restart.", e);
+        }
+        return this.journal;
+    }
+
+    /**
+     * Queues a report for delivery. Returns once the report is in the journal.
+     * @return false if the outbox is full, the caller should deliver the report itself then.
+     */
+    public boolean enqueue(FogbugzReport report) {
+        FogbugzNotificationJournal journal = ensureJournalOpen();
+        synchronized (this) {
+            if (this.pending >= MAX_PENDING) {
+                this.rejected.incrementAndGet();
+                return false;
+            }
+            this.pending++;
+        }
+
+        long sequence = -1;
+        if (journal != null) {
+            try {
+                sequence = journal.add(report);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Cannot journal " + report + ", it will not survive a restart.", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        schedule(new Pending(sequence, report));
+        return true;
+    }
+
+    private void schedule(Pending item) {
+        int caseId = item.report.getCaseId();
+        synchronized (this) {
+            Deque<Pending> queue = this.pendingByCase.get(caseId);
+            if (queue != null) {
+                // A worker is already busy with this case, it will pick this report up after the current one.
+                queue.addLast(item);
+                return;
+            }
+            queue = new ArrayDeque<Pending>();
+            queue.addLast(item);
+            this.pendingByCase.put(caseId, queue);
+        }
+        this.executor.schedule(new CaseWorker(caseId), COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers a report on the calling thread.
+     * @return true if the case was saved.
+     */
+    public boolean deliver(FogbugzReport report) {
+        this.inFlight.incrementAndGet();
+        try {
+            boolean saved = report.deliver(this.descriptor.getFogbugzManager(), this.descriptor);
+            if (saved) {
+                this.delivered.incrementAndGet();
+            } else {
+                this.failed.incrementAndGet();
+                log.log(Level.WARNING, "Fogbugz did not accept " + report + ".");
+            }
+            return saved;
+        } catch (RuntimeException e) {
+            this.failed.incrementAndGet();
+            log.log(Level.WARNING, "Exception while delivering " + report + ".", e);
+            return false;
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Delay before the next attempt: exponential in the number of attempts, with jitter so reports that failed
+     * together do not all come back at the same moment.
+     */
+    static long retryDelay(int attempts) {
+        long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempts - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public synchronized int getPending() {
+        return this.pending;
+    }
+
+    public synchronized int getPendingCases() {
+        return this.pendingByCase.size();
+    }
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    public int getRetrying() {
+        return this.retrying.get();
+    }
+
+    public long getDelivered() {
+        return this.delivered.get();
+    }
+
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    public int getMaxPending() {
+        return MAX_PENDING;
+    }
+
+    public int getMaxAttempts() {
+        return MAX_ATTEMPTS;
+    }
+
+    public synchronized String getJournalFile() {
+        return this.journal != null ? this.journal.getFile().getPath() : "(not open)";
+    }
+
+    /**
+     * One or more queued reports for a case, merged together, with their journal sequence numbers.
+     */
+    private static final class Pending {
+        private final List<Long> sequences = new ArrayList<Long>();
+        private FogbugzReport report;
+        private int count = 1;
+        private int attempts;
+
+        /**
+         * @param sequence Journal sequence number of the report, -1 if it is not in the journal.
+         */
+        Pending(long sequence, FogbugzReport report) {
+            if (sequence >= 0) {
+                this.sequences.add(sequence);
+            }
+            this.report = report;
+        }
+
+        void absorb(Pending newer) {
+            this.sequences.addAll(newer.sequences);
+            this.report = this.report.merge(newer.report);
+            this.count += newer.count;
+        }
+    }
+
+    /**
+     * Delivers all queued reports of a single case, merging the ones that are waiting together.
+     * When a delivery fails, the worker stops and is scheduled again after a delay, keeping the order of the case.
+     */
+    private class CaseWorker implements Runnable {
+        private final int caseId;
+
+        CaseWorker(int caseId) {
+            this.caseId = caseId;
+        }
+
+        public void run() {
+            Pending[] current = new Pending[1];
+            boolean released = false;
+            try {
+                released = this.work(current);
+            } finally {
+                if (!released) {
+                    this.release(current[0]);
+                }
+            }
+        }
+
+        /**
+         * @return true if the case was handed to a retry or has nothing left, false if it is still busy.
+         */
+        private boolean work(Pending[] current) {
+            FogbugzNotificationOutbox outbox = FogbugzNotificationOutbox.this;
+            while (true) {
+                Pending item;
+                synchronized (outbox) {
+                    Deque<Pending> queue = outbox.pendingByCase.get(this.caseId);
+                    item = queue.pollFirst();
+                    while (!queue.isEmpty()) {
+                        outbox.coalesced.incrementAndGet();
+                        item.absorb(queue.pollFirst());
+                    }
+                    queue.addFirst(item);
+                }
+                current[0] = item;
+                item.attempts++;
+                if (!deliver(item.report)) {
+                    if (item.attempts < MAX_ATTEMPTS) {
+                        long delay = retryDelay(item.attempts);
+                        log.info("Retrying " + item.report + " in " + delay + "ms (attempt " + item.attempts + ").");
+                        outbox.retrying.incrementAndGet();
+                        outbox.executor.schedule(new Runnable() {
+                            public void run() {
+                                retrying.decrementAndGet();
+                                CaseWorker.this.run();
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                        return true;
+                    }
+                    outbox.dropped.incrementAndGet();
+                    log.log(Level.SEVERE, "Giving up on " + item.report + " after " + item.attempts + " attempts.");
+                }
+                for (long sequence : item.sequences) {
+                    outbox.journal.done(sequence);
+                }
+                synchronized (outbox) {
+                    Deque<Pending> queue = outbox.pendingByCase.get(this.caseId);
+                    queue.removeFirst();
+                    outbox.pending -= item.count;
+                    if (queue.isEmpty()) {
+                        outbox.pendingByCase.remove(this.caseId);
+                        return true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Frees the case after an error escaped the delivery, so later reports for it are still sent.
+         * The report that was being delivered stays in the journal, so it is tried again after a restart.
+         */
+        private void release(Pending item) {
+            FogbugzNotificationOutbox outbox = FogbugzNotificationOutbox.this;
+            synchronized (outbox) {
+                Deque<Pending> queue = outbox.pendingByCase.get(this.caseId);
+                if (queue == null) {
+                    return;
+                }
+                if (item != null && queue.peekFirst() == item) {
+                    queue.removeFirst();
+                    outbox.pending -= item.count;
+                    outbox.dropped.incrementAndGet();
+                    log.log(Level.SEVERE, "Dropped " + item.report + " after an error.");
+                }
+                if (queue.isEmpty()) {
+                    outbox.pendingByCase.remove(this.caseId);
+                    return;
+                }
+            }
+            outbox.executor.schedule(new CaseWorker(this.caseId), COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package jenkins.plugins.fogbugz.notifications;
 
 import com.github.jknack.handlebars.Context;
-import com.github.jknack.handlebars.Handlebars;
 import com.github.jknack.handlebars.Template;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -17,14 +16,20 @@ import lombok.Getter;
 import lombok.extern.java.Log;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.paylogic.fogbugz.FogbugzCase;
-import org.paylogic.fogbugz.FogbugzEvent;
 import org.paylogic.fogbugz.FogbugzManager;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 /**
@@ -87,46 +92,25 @@ public class FogbugzNotifier extends Notifier {
             usableCaseId = Integer.parseInt(givenCaseId);
         }
 
-        /* Parse log file and build message string with its result. */
+        /* Parse log file and collect its messages, within the size limit of the report. */
         LogMessageSearcher messageSearcher = new LogMessageSearcher(build);
-        String reportingExtraMessage = "";
+        ReportMessageAggregator messages = new ReportMessageAggregator();
         try {
+            String prefix = LogMessageSearcher.getMessagePrefix();
             for (String line: messageSearcher.searchForMessages()) {
-                reportingExtraMessage += line.replace(LogMessageSearcher.getMessagePrefix(), "") + "\n"; // Remove prefix
+                messages.add(StringEscapeUtils.unescapeXml(StringEscapeUtils.unescapeHtml(line.replace(prefix, "")))); // Remove prefix
             }
         } catch (IOException e) {
-            reportingExtraMessage = "Failure while retrieving messages from logfile.";
+            messages.addNote("Failure while retrieving messages from logfile.");
             log.log(Level.SEVERE, "Failure while retrieving messages from logfile.", e);
         }
 
         if (build.getResult() != Result.SUCCESS) {
-            reportingExtraMessage += "\nGatekeepering and Upmerging have been aborted, " +
-                    "and no further actions were performed, because the build failed.";
+            messages.addNote("\nGatekeepering and Upmerging have been aborted, " +
+                    "and no further actions were performed, because the build failed.");
         }
 
 
-        /* Retrieve case */
-        FogbugzManager caseManager = this.getFogbugzManager();
-        FogbugzCase fbCase = null;
-        try {
-            fbCase = caseManager.getCaseById(usableCaseId);
-        } catch (Exception e) {
-            log.log(Level.SEVERE, "Fetching case from fogbugz failed. Please check your settings.", e);
-            listener.getLogger().append("Fetching case from Fogbugz failed. Please check your settings.");
-            return false;
-        }
-        if (fbCase == null) {
-            log.log(Level.SEVERE, "Fetching case from fogbugz failed. Please check your settings.");
-            return false;
-        }
-
-        FogbugzEvent lastAssignmentEvent = caseManager.getLastAssignedTo(
-                fbCase.getId(), this.getDescriptor().getGatekeeperUserId());
-        if (lastAssignmentEvent == null) {
-            lastAssignmentEvent = caseManager.getLastAssignedTo(
-                    fbCase.getId(), this.getDescriptor().getMergekeeperUserId());
-        }
-
         /* Fill template context with useful variables. */
         Context templateContext = Context.newContext(null);
         templateContext.data("url", build.getAbsoluteUrl());
@@ -134,9 +118,11 @@ public class FogbugzNotifier extends Notifier {
         templateContext.data("buildResult", build.getResult().toString());
         templateContext.data("buildTime", build.getDurationString());
         templateContext.data("builtOn", build.getBuiltOnStr());
-        log.log(Level.FINE, "ReportingExtraMessage: " + reportingExtraMessage);
-        templateContext.data(
-                "messages", StringEscapeUtils.unescapeXml(StringEscapeUtils.unescapeHtml(reportingExtraMessage)));
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "ReportingExtraMessage: " + messages);
+        }
+        // Rendered by the template itself, no need to build the text beforehand. Empty still counts as false there.
+        templateContext.data("messages", messages.isEmpty() ? "" : messages);
         try {
             AbstractTestResultAction testResultAction = build.getAction(AbstractTestResultAction.class);
             if (testResultAction != null) {
@@ -151,48 +137,13 @@ public class FogbugzNotifier extends Notifier {
             templateContext.data("tests_total", "");
         }
 
-        /* Assign the case back to detected developer. */
-        if (this.getDescriptor().doAssignBaseCase()) {
-            try {
-                fbCase.setAssignedTo(lastAssignmentEvent.getPerson());
-            } catch (Exception e) {
-                fbCase.setAssignedTo(this.getDescriptor().getGatekeeperUserId());
-            }
-        }
-
-        /* Fetch&render templates, then save the template output together with the case. */
+        /* Fetch&render templates, the case itself is edited later on by the outbox. */
         Template mustacheTemplate;
-        Handlebars handlebars = new Handlebars();
         if (build.getResult() == Result.SUCCESS) {
-            try {
-                mustacheTemplate = handlebars.compileInline(this.getDescriptor().getSuccessfulBuildTemplate());
-            }
-            catch (IOException e) {
-                mustacheTemplate = null;
-            }
-            // Add tag if required
-            if (this.getDescriptor().getSuccessfulBuildTag() != null && !this.getDescriptor().getSuccessfulBuildTag().isEmpty()) {
-                fbCase.addTag(this.getDescriptor().getSuccessfulBuildTag());
-            }
-
-            // Set milestone if required
-            // TODO: again, replace this with an extension point, as this is very process specific.
-            if (this.getDescriptor().doAssignBaseCase()) {
-                // Milestone should be set to 'target branch' without the 'r' in front of the release number.
-                // Strip 'r' from release number and set as milestone (creating one if not exists).
-                String milestoneName = fbCase.getTargetBranch().substring(1, fbCase.getTargetBranch().length());
-                caseManager.createMilestoneIfNotExists(milestoneName);
-                fbCase.setMilestone(milestoneName);
-            }
+            mustacheTemplate = this.getDescriptor().getTemplate(FogbugzTemplateCache.Kind.SUCCESSFUL);
         } else {
-            try {
-                mustacheTemplate = handlebars.compileInline(this.getDescriptor().getFailedBuildTemplate());
-            }
-            catch (IOException e) {
-                mustacheTemplate = null;
-            }
+            mustacheTemplate = this.getDescriptor().getTemplate(FogbugzTemplateCache.Kind.FAILED);
         }
-        /* Save case, this propagates the changes made on the case object */
         String message = "Error rendering template during reporting! Please check jenkins configuration.";
         if (mustacheTemplate != null) {
             try {
@@ -201,8 +152,28 @@ public class FogbugzNotifier extends Notifier {
             catch (IOException e) {
             }
         }
-        caseManager.saveCase(fbCase, message);
 
+        /* On success, add the tag and set the milestone if required. */
+        boolean successful = build.getResult() == Result.SUCCESS;
+        List<String> tags = new ArrayList<String>();
+        String successfulBuildTag = this.getDescriptor().getSuccessfulBuildTag();
+        if (successful && successfulBuildTag != null && !successfulBuildTag.isEmpty()) {
+            tags.add(successfulBuildTag);
+        }
+        FogbugzReport report = new FogbugzReport(usableCaseId, successful, message, build.getAbsoluteUrl(),
+                tags, successful && this.getDescriptor().doAssignBaseCase());
+        FogbugzNotificationOutbox outbox = this.getDescriptor().getOutbox();
+        if (outbox.enqueue(report)) {
+            l.println("Queued build status report for case " + usableCaseId + ".");
+            return true;
+        }
+
+        /* Outbox is full, so deliver the report ourselves to slow down the builds a bit. */
+        l.println("Fogbugz notification outbox is full, sending build status for case " + usableCaseId + " now.");
+        if (!outbox.deliver(report)) {
+            l.println("Sending build status to Fogbugz failed. Please check your settings.");
+            return false;
+        }
         return true;
     }
 
@@ -210,14 +181,7 @@ public class FogbugzNotifier extends Notifier {
         Context templateContext = Context.newContext(null);
         templateContext.data("url", p.getAbsoluteUrl());
         templateContext.data("name", p.getName());
-        Template mustacheTemplate;
-        Handlebars handlebars = new Handlebars();
-        try {
-            mustacheTemplate = handlebars.compileInline(this.getDescriptor().getScheduledBuildTemplate());
-        }
-        catch (IOException e) {
-            mustacheTemplate = null;
-        }
+        Template mustacheTemplate = this.getDescriptor().getTemplate(FogbugzTemplateCache.Kind.SCHEDULED);
         /* Save case, this propagates the changes made on the case object */
         String message = "Error rendering scheduled template during reporting! Please check jenkins configuration.";
         if (mustacheTemplate != null) {
@@ -227,7 +191,13 @@ public class FogbugzNotifier extends Notifier {
             catch (IOException e) {
             }
         }
-        this.getFogbugzManager().saveCase(fbCase, message);
+        // The case may come from the cache or a search a while ago, saving that would undo recent edits.
+        FogbugzManager caseManager = this.getFogbugzManager();
+        try {
+            caseManager.saveCase(CachingFogbugzManager.getCaseForEdit(caseManager, fbCase.getId()), message);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Fetching case " + fbCase.getId() + " to notify about its build failed.", e);
+        }
     }
 
     public DescriptorImpl getDescriptor() {
@@ -238,6 +208,10 @@ public class FogbugzNotifier extends Notifier {
         return this.getDescriptor().getFogbugzManager();
     }
 
+    public FogbugzManager getFogbugzManager(String ciProjectFieldName) {
+        return this.getDescriptor().getFogbugzManager(ciProjectFieldName);
+    }
+
 
     /**
      * Global settings for FogbugzPlugin.
@@ -247,10 +221,42 @@ public class FogbugzNotifier extends Notifier {
     public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
         @Getter private String token;
 
+        private static final String DEFAULT_FAILED_BUILD_TEMPLATE =
+                "Jenkins reports that the build has {{tests_failed}} failed tests :(" +
+                "\nBuild took {{buildTime}}" +
+                "\nCatched log messages:\n{{messages}}" +
+                "\nView extended result here: {{url}}";
+
+        private static final String DEFAULT_SUCCESSFUL_BUILD_TEMPLATE =
+                "Jenkins reports that the build was successful!" +
+                "\nBuild took {{buildTime}}" +
+                "\nCatched log messages:\n{{messages}}" +
+                "\nView extended result here: {{url}}";
+
+        private static final String DEFAULT_SCHEDULED_BUILD_TEMPLATE =
+                "Scheduled a jenkins build on a {{name}} job. Stay tuned!" +
+                "\nView the job here: {{url}}";
+
         private String failedBuildTemplate;
         private String successfulBuildTemplate;
         private String scheduledBuildTemplate;
 
+        private final transient FogbugzTemplateCache templateCache = new FogbugzTemplateCache();
+
+        private final transient FogbugzNotificationOutbox outbox = new FogbugzNotificationOutbox(this);
+
+        /** Cases fetched by the managers below, shared between them. */
+        private transient volatile FogbugzCaseCache caseCache;
+
+        private final transient FogbugzMilestoneCache milestoneCache = new FogbugzMilestoneCache();
+
+        /** Manager for the current settings, created on first use after the settings change. */
+        private transient volatile FogbugzManager fogbugzManager;
+
+        /** Managers that read the CI project from another field than the configured one, by field name. */
+        private final transient ConcurrentMap<String, FogbugzManager> fieldFogbugzManagers =
+                new ConcurrentHashMap<String, FogbugzManager>();
+
         @Getter private String featureBranchFieldname;
         @Getter private String originalBranchFieldname;
         @Getter private String targetBranchFieldname;
@@ -264,6 +270,9 @@ public class FogbugzNotifier extends Notifier {
         @Getter private boolean setMilestone = true;
         @Getter private String successfulBuildTag = "";
 
+        @Getter private int caseCacheTtl = 60;
+        @Getter private int caseCacheSize = 500;
+
         public String getUrl() {
             return new FogbugzProjectProperty().getDescriptor().getUrl();
         }
@@ -293,34 +302,39 @@ public class FogbugzNotifier extends Notifier {
         }
 
         public String getFailedBuildTemplate() {
-            if (this.failedBuildTemplate == null || this.failedBuildTemplate.isEmpty()) {
-                return "Jenkins reports that the build has {{tests_failed}} failed tests :(" +
-                        "\nBuild took {{buildTime}}" +
-                        "\nCatched log messages:\n{{messages}}" +
-                        "\nView extended result here: {{url}}";
-            } else {
-                return this.failedBuildTemplate;
-            }
+            return StringUtils.defaultIfEmpty(this.failedBuildTemplate, DEFAULT_FAILED_BUILD_TEMPLATE);
         }
 
         public String getSuccessfulBuildTemplate() {
-            if (this.successfulBuildTemplate == null || this.successfulBuildTemplate.isEmpty()) {
-                return "Jenkins reports that the build was successful!" +
-                        "\nBuild took {{buildTime}}" +
-                        "\nCatched log messages:\n{{messages}}" +
-                        "\nView extended result here: {{url}}";
-            } else {
-                return this.successfulBuildTemplate;
-            }
+            return StringUtils.defaultIfEmpty(this.successfulBuildTemplate, DEFAULT_SUCCESSFUL_BUILD_TEMPLATE);
         }
 
 
         public String getScheduledBuildTemplate() {
-            if (this.scheduledBuildTemplate == null || this.scheduledBuildTemplate.isEmpty()) {
-                return "Scheduled a jenkins build on a {{name}} job. Stay tuned!" +
-                        "\nView the job here: {{url}}";
-            } else {
-                return this.scheduledBuildTemplate;
+            return StringUtils.defaultIfEmpty(this.scheduledBuildTemplate, DEFAULT_SCHEDULED_BUILD_TEMPLATE);
+        }
+
+        /**
+         * Returns the compiled template of given kind, or null if it cannot be compiled.
+         */
+        public Template getTemplate(FogbugzTemplateCache.Kind kind) {
+            String text;
+            switch (kind) {
+                case SUCCESSFUL:
+                    text = this.getSuccessfulBuildTemplate();
+                    break;
+                case FAILED:
+                    text = this.getFailedBuildTemplate();
+                    break;
+                default:
+                    text = this.getScheduledBuildTemplate();
+                    break;
+            }
+            try {
+                return this.templateCache.get(kind, text);
+            } catch (FogbugzTemplateCache.CompileException e) {
+                log.log(Level.SEVERE, e.getMessage(), e);
+                return null;
             }
         }
 
@@ -341,6 +355,25 @@ public class FogbugzNotifier extends Notifier {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            String failedBuildTemplate = formData.getString("failedBuildTemplate");
+            String successfulBuildTemplate = formData.getString("successfulBuildTemplate");
+            String scheduledBuildTemplate = formData.getString("scheduledBuildTemplate");
+
+            // Compile the templates now, so mistakes show up here instead of in the case reports.
+            Map<FogbugzTemplateCache.Kind, String> templates =
+                    new EnumMap<FogbugzTemplateCache.Kind, String>(FogbugzTemplateCache.Kind.class);
+            templates.put(FogbugzTemplateCache.Kind.FAILED,
+                    StringUtils.defaultIfEmpty(failedBuildTemplate, DEFAULT_FAILED_BUILD_TEMPLATE));
+            templates.put(FogbugzTemplateCache.Kind.SUCCESSFUL,
+                    StringUtils.defaultIfEmpty(successfulBuildTemplate, DEFAULT_SUCCESSFUL_BUILD_TEMPLATE));
+            templates.put(FogbugzTemplateCache.Kind.SCHEDULED,
+                    StringUtils.defaultIfEmpty(scheduledBuildTemplate, DEFAULT_SCHEDULED_BUILD_TEMPLATE));
+            try {
+                this.templateCache.replaceAll(templates);
+            } catch (FogbugzTemplateCache.CompileException e) {
+                throw new FormException(e.getMessage(), e, e.getKind().getFormField());
+            }
+
             this.token = formData.getString("token");
             this.featureBranchFieldname = formData.getString("featureBranchFieldname");
             this.originalBranchFieldname = formData.getString("originalBranchFieldname");
@@ -360,22 +393,98 @@ public class FogbugzNotifier extends Notifier {
             }
             this.gatekeeperUserId = gatekeeperid;
 
-            this.failedBuildTemplate = formData.getString("failedBuildTemplate");
-            this.successfulBuildTemplate = formData.getString("successfulBuildTemplate");
-            this.scheduledBuildTemplate = formData.getString("scheduledBuildTemplate");
+            this.failedBuildTemplate = failedBuildTemplate;
+            this.successfulBuildTemplate = successfulBuildTemplate;
+            this.scheduledBuildTemplate = scheduledBuildTemplate;
 
             this.assignBackCase = formData.getBoolean("assignBackCase");
             this.setMilestone = formData.getBoolean("setMilestone");
             this.successfulBuildTag = formData.getString("successfulBuildTag");
+            this.caseCacheTtl = Math.max(0, formData.optInt("caseCacheTtl", 60));
+            this.caseCacheSize = Math.max(0, formData.optInt("caseCacheSize", 500));
 
             save();
+            this.resetFogbugzManagers();
             return super.configure(req, formData);
         }
 
+        public FogbugzNotificationOutbox getOutbox() {
+            return this.outbox;
+        }
+
+        /**
+         * Returns the manager for the current settings. It is shared by everyone, so never change its settings.
+         */
         public FogbugzManager getFogbugzManager() {
-            return new FogbugzManager(this.getUrl(), this.getToken(), this.getFeatureBranchFieldname(),
+            FogbugzManager manager = this.fogbugzManager;
+            if (manager == null) {
+                synchronized (this) {
+                    manager = this.fogbugzManager;
+                    if (manager == null) {
+                        manager = this.createFogbugzManager(this.getCiProjectFieldName());
+                        this.fogbugzManager = manager;
+                    }
+                }
+            }
+            return manager;
+        }
+
+        /**
+         * Returns a shared manager that reads the CI project from the given field instead of the configured one.
+         * @param ciProjectFieldName Name of the CI project field, null or empty for the configured one.
+         */
+        public FogbugzManager getFogbugzManager(String ciProjectFieldName) {
+            if (ciProjectFieldName == null || ciProjectFieldName.isEmpty()
+                    || ciProjectFieldName.equals(this.getCiProjectFieldName())) {
+                return this.getFogbugzManager();
+            }
+            FogbugzManager manager = this.fieldFogbugzManagers.get(ciProjectFieldName);
+            if (manager == null) {
+                // Under the same lock as resetFogbugzManagers, so a manager with old settings is never stored after it.
+                synchronized (this) {
+                    manager = this.fieldFogbugzManagers.get(ciProjectFieldName);
+                    if (manager == null) {
+                        manager = this.createFogbugzManager(ciProjectFieldName);
+                        this.fieldFogbugzManagers.put(ciProjectFieldName, manager);
+                    }
+                }
+            }
+            return manager;
+        }
+
+        /**
+         * Drops the shared managers and their cached cases, so the next call creates them with the current settings.
+         */
+        public synchronized void resetFogbugzManagers() {
+            this.caseCache = null;
+            this.milestoneCache.clear();
+            this.fogbugzManager = null;
+            this.fieldFogbugzManagers.clear();
+        }
+
+        public FogbugzMilestoneCache getMilestoneCache() {
+            return this.milestoneCache;
+        }
+
+        public FogbugzCaseCache getCaseCache() {
+            FogbugzCaseCache cache = this.caseCache;
+            if (cache == null) {
+                synchronized (this) {
+                    cache = this.caseCache;
+                    if (cache == null) {
+                        cache = new FogbugzCaseCache(this.caseCacheTtl, this.caseCacheSize);
+                        this.caseCache = cache;
+                    }
+                }
+            }
+            return cache;
+        }
+
+        private FogbugzManager createFogbugzManager(String ciProjectFieldName) {
+            return new CachingFogbugzManager(this.getCaseCache(),
+                    this.getUrl(), this.getToken(), this.getFeatureBranchFieldname(),
                     this.getOriginalBranchFieldname(), this.getTargetBranchFieldname(), this.getApprovedRevisionFieldname(),
-                    this.getCiProjectFieldName(),
+                    ciProjectFieldName,
                     this.getMergekeeperUserId(), this.getGatekeeperUserId());
         }
 
@@ -0,0 +1,162 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.model.Computer;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzEvent;
+import org.paylogic.fogbugz.FogbugzManager;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Immutable build status report for a single Fogbugz case.
+ * Captured when a build finishes, and delivered to Fogbugz later on by the {@link FogbugzNotificationOutbox}.
+ * Reports for the same case that are waiting together are merged with {@link #merge(FogbugzReport)},
+ * so they result in a single case edit.
+ */
+@Log
+public final class FogbugzReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Getter private final int caseId;
+    @Getter private final boolean successful;
+    @Getter private final String message;
+    @Getter private final String buildUrl;
+    @Getter private final Set<String> tags;
+    @Getter private final boolean setMilestone;
+
+    /**
+     * @param tags Tags to add to the case.
+     * @param setMilestone Whether to set the milestone of the case to its target branch.
+     */
+    public FogbugzReport(int caseId, boolean successful, String message, String buildUrl,
+                         Collection<String> tags, boolean setMilestone) {
+        this.caseId = caseId;
+        this.successful = successful;
+        this.message = message;
+        this.buildUrl = buildUrl;
+        this.tags = Collections.unmodifiableSet(new LinkedHashSet<String>(tags));
+        this.setMilestone = setMilestone;
+    }
+
+    /**
+     * Combines this report with a newer one for the same case: the messages are appended, everything else comes
+     * from the newer report, so a case whose last build failed does not get the tags of an earlier success.
+     * The merged message is kept within {@link ReportMessageAggregator#MAX_BYTES}, leaving out the oldest text.
+     */
+    public FogbugzReport merge(FogbugzReport newer) {
+        if (newer.caseId != this.caseId) {
+            throw new IllegalArgumentException("Cannot merge reports of case " + this.caseId + " and " + newer.caseId);
+        }
+        String message = ReportMessageAggregator.keepEnd(this.message + "\n\n" + newer.message,
+                ReportMessageAggregator.MAX_BYTES);
+        return new FogbugzReport(this.caseId, newer.successful, message, newer.buildUrl, newer.tags,
+                newer.setMilestone);
+    }
+
+    /**
+     * Edits the case: assigns it back to the developer, sets tag and milestone, and posts the message.
+     * @return true if the case was saved.
+     */
+    public boolean deliver(FogbugzManager caseManager, FogbugzNotifier.DescriptorImpl descriptor) {
+        // Each assignment lookup downloads the case history, they run while the case itself is fetched.
+        Future<FogbugzEvent> gatekeeperLookup = null;
+        Future<FogbugzEvent> mergekeeperLookup = null;
+        if (descriptor.doAssignBaseCase()) {
+            gatekeeperLookup = this.lookUpLastAssignment(caseManager, descriptor.getGatekeeperUserId());
+            if (descriptor.getMergekeeperUserId() != descriptor.getGatekeeperUserId()) {
+                mergekeeperLookup = this.lookUpLastAssignment(caseManager, descriptor.getMergekeeperUserId());
+            }
+        }
+
+        FogbugzCase fbCase = null;
+        try {
+            fbCase = CachingFogbugzManager.getCaseForEdit(caseManager, this.caseId);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Fetching case from fogbugz failed. Please check your settings.", e);
+            return false;
+        }
+        if (fbCase == null) {
+            log.log(Level.SEVERE, "Fetching case from fogbugz failed. Please check your settings.");
+            return false;
+        }
+
+        /* Assign the case back to detected developer: the last one who assigned it to the gatekeeper user,
+           or else to the mergekeeper user. */
+        if (gatekeeperLookup != null) {
+            FogbugzEvent lastAssignmentEvent = getResult(gatekeeperLookup);
+            if (lastAssignmentEvent == null) {
+                lastAssignmentEvent = getResult(mergekeeperLookup);
+            }
+            try {
+                fbCase.setAssignedTo(lastAssignmentEvent.getPerson());
+            } catch (Exception e) {
+                fbCase.setAssignedTo(descriptor.getGatekeeperUserId());
+            }
+        }
+
+        /* Only change tags and milestone when the case does not have them yet. */
+        for (String tag : this.tags) {
+            if (!fbCase.hasTag(tag)) {
+                fbCase.addTag(tag);
+            }
+        }
+
+        // TODO: again, replace this with an extension point, as this is very process specific.
+        if (this.setMilestone) {
+            // Milestone should be set to 'target branch' without the 'r' in front of the release number.
+            // Strip 'r' from release number and set as milestone (creating one if not exists).
+            String milestoneName = fbCase.getTargetBranch().substring(1, fbCase.getTargetBranch().length());
+            if (!milestoneName.equals(fbCase.getMilestone())) {
+                descriptor.getMilestoneCache().ensureExists(caseManager, milestoneName);
+                fbCase.setMilestone(milestoneName);
+            }
+        }
+
+        /* Save case, this propagates the changes made on the case object */
+        return caseManager.saveCase(fbCase, this.message);
+    }
+
+    /**
+     * Looks up the last time the case was assigned to the user, in the background.
+     */
+    private Future<FogbugzEvent> lookUpLastAssignment(final FogbugzManager caseManager, final int userId) {
+        return Computer.threadPoolForRemoting.submit(new Callable<FogbugzEvent>() {
+            public FogbugzEvent call() {
+                return caseManager.getLastAssignedTo(FogbugzReport.this.caseId, userId);
+            }
+        });
+    }
+
+    /**
+     * @return The assignment found, or null if there is none or the lookup failed.
+     */
+    private static FogbugzEvent getResult(Future<FogbugzEvent> lookup) {
+        if (lookup == null) {
+            return null;
+        }
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            log.log(Level.WARNING, "Looking up the last assignment failed.", e.getCause());
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "report for case " + this.caseId + " from " + this.buildUrl;
+    }
+}
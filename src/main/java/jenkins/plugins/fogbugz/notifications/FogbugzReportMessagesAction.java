@@ -0,0 +1,41 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Report messages of a build, collected by {@link ReportMessageLogFilter} while the build log was written.
+ * Saves searching the log for them when the build reports to Fogbugz. The messages are only needed for that, so
+ * they are not saved with the build; after a restart the log is searched instead.
+ */
+public class FogbugzReportMessagesAction implements Action {
+    private transient List<String> messages = new ArrayList<String>();
+
+    public synchronized void add(String message) {
+        if (this.messages != null) {
+            this.messages.add(message);
+        }
+    }
+
+    /**
+     * @return The log lines that contain the report message keyword, in the order they were logged,
+     *         or null if the build was loaded from disk and they are gone.
+     */
+    public synchronized List<String> getMessages() {
+        return this.messages != null ? new ArrayList<String>(this.messages) : null;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Fogbugz report messages";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
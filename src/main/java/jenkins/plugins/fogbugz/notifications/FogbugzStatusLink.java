@@ -0,0 +1,40 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+/**
+ * Shows the status of the Fogbugz notification outbox and case cache on the 'Manage Jenkins' page.
+ */
+@Extension
+public class FogbugzStatusLink extends ManagementLink {
+
+    public String getIconFileName() {
+        return "/plugin/fogbugz/images/fogbugz_icon.png";
+    }
+
+    public String getDisplayName() {
+        return "Fogbugz plugin status";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Build status reports waiting to be sent to Fogbugz, and the Fogbugz case cache.";
+    }
+
+    public String getUrlName() {
+        return "fogbugz-status";
+    }
+
+    public FogbugzNotificationOutbox getOutbox() {
+        return new FogbugzNotifier().getDescriptor().getOutbox();
+    }
+
+    public FogbugzCaseCache getCaseCache() {
+        return new FogbugzNotifier().getDescriptor().getCaseCache();
+    }
+
+    public FogbugzMilestoneCache getMilestoneCache() {
+        return new FogbugzNotifier().getDescriptor().getMilestoneCache();
+    }
+}
@@ -0,0 +1,112 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.HandlebarsException;
+import com.github.jknack.handlebars.Template;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the compiled report templates of the notifier, keyed by template kind and template text.
+ * Templates are compiled once and the whole set is swapped atomically when the global settings are saved,
+ * so builds never parse a template themselves.
+ */
+@Log
+public class FogbugzTemplateCache {
+
+    /**
+     * The different templates the notifier renders, with the name of the form field they are configured in.
+     */
+    public enum Kind {
+        SUCCESSFUL("successfulBuildTemplate"),
+        FAILED("failedBuildTemplate"),
+        SCHEDULED("scheduledBuildTemplate");
+
+        @Getter private final String formField;
+
+        Kind(String formField) {
+            this.formField = formField;
+        }
+    }
+
+    /**
+     * Thrown when one of the templates cannot be compiled.
+     */
+    public static class CompileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        @Getter private final Kind kind;
+
+        public CompileException(Kind kind, Throwable cause) {
+            super("Cannot compile " + kind.getFormField() + ": " + cause.getMessage(), cause);
+            this.kind = kind;
+        }
+    }
+
+    private static final class Entry {
+        private final String text;
+        private final Template template;
+
+        private Entry(String text, Template template) {
+            this.text = text;
+            this.template = template;
+        }
+    }
+
+    private final Handlebars handlebars = new Handlebars();
+
+    private final AtomicReference<Map<Kind, Entry>> entries =
+            new AtomicReference<Map<Kind, Entry>>(Collections.<Kind, Entry>emptyMap());
+
+    /**
+     * Returns the compiled template for the given kind and text.
+     * Only compiles when the text differs from the cached one, e.g. right after Jenkins started.
+     */
+    public Template get(Kind kind, String text) throws CompileException {
+        Entry entry = entries.get().get(kind);
+        if (entry != null && entry.text.equals(text)) {
+            return entry.template;
+        }
+
+        Entry compiled = new Entry(text, compile(kind, text));
+        Map<Kind, Entry> current;
+        Map<Kind, Entry> updated;
+        do {
+            current = entries.get();
+            updated = new EnumMap<Kind, Entry>(Kind.class);
+            updated.putAll(current);
+            updated.put(kind, compiled);
+        } while (!entries.compareAndSet(current, updated));
+        return compiled.template;
+    }
+
+    /**
+     * Compiles all given templates and only replaces the cached set when every one of them compiled.
+     * @param texts Template text per kind.
+     * @throws CompileException for the first template that does not compile, the cache is left untouched then.
+     */
+    public void replaceAll(Map<Kind, String> texts) throws CompileException {
+        Map<Kind, Entry> updated = new EnumMap<Kind, Entry>(Kind.class);
+        for (Map.Entry<Kind, String> text : texts.entrySet()) {
+            updated.put(text.getKey(), new Entry(text.getValue(), compile(text.getKey(), text.getValue())));
+        }
+        entries.set(updated);
+    }
+
+    private synchronized Template compile(Kind kind, String text) throws CompileException {
+        log.fine("Compiling " + kind.getFormField() + ".");
+        try {
+            return handlebars.compileInline(text);
+        } catch (IOException e) {
+            throw new CompileException(kind, e);
+        } catch (HandlebarsException e) {
+            throw new CompileException(kind, e);
+        }
+    }
+}
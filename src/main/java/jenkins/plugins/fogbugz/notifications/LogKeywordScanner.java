@@ -0,0 +1,470 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.init.Terminator;
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Finds the lines of a log that contain any of a set of keywords, in a single pass over the raw bytes.
+ * Keywords are matched with an Aho-Corasick automaton on their encoded bytes, so only the matching lines are decoded.
+ * Plain log files are memory mapped, gzip compressed ones (ending in .gz) are streamed.
+ * Plain log files larger than {@link #PARALLEL_THRESHOLD} are split in ranges that are scanned in parallel,
+ * by at most {@link #PARALLELISM} threads.
+ */
+public class LogKeywordScanner {
+
+    /** Size of the file regions that are mapped at once. */
+    private static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    /** Log files larger than this many bytes are scanned in parallel. */
+    public static final long PARALLEL_THRESHOLD =
+            Long.getLong(LogKeywordScanner.class.getName() + ".parallelThreshold", 256L * 1024 * 1024);
+
+    /** Smallest range of a log file that is scanned as a separate task. */
+    private static final int MIN_RANGE_SIZE = 8 * 1024 * 1024;
+
+    /** Matching lines longer than this many bytes, not counting the longest keyword, are cut off. */
+    public static final int MAX_LINE_LENGTH =
+            Integer.getInteger(LogKeywordScanner.class.getName() + ".maxLineLength", 64 * 1024);
+
+    /** Most threads that scan ranges at the same time, shared by all scans. */
+    public static final int PARALLELISM = Integer.getInteger(LogKeywordScanner.class.getName() + ".parallelism",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Created on first use, shut down with Jenkins. Guarded by the class. */
+    private static ForkJoinPool pool;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final String[] keywords;
+    private final Charset charset;
+    private final int regionSize;
+    private final long parallelThreshold;
+    private final int minRangeSize;
+
+    /** Most bytes of a line that are kept. */
+    private final int maxLineBytes;
+
+    /** Transition table of the automaton: next state per state and input byte. */
+    private final int[][] transitions;
+
+    /** Indexes of the keywords that end in each state, null if none do. */
+    private final int[][] matches;
+
+    public LogKeywordScanner(Collection<String> keywords, Charset charset) {
+        this(keywords, charset, DEFAULT_REGION_SIZE, PARALLEL_THRESHOLD, MIN_RANGE_SIZE);
+    }
+
+    LogKeywordScanner(Collection<String> keywords, Charset charset, int regionSize,
+                      long parallelThreshold, int minRangeSize) {
+        this.keywords = new LinkedHashSet<String>(keywords).toArray(new String[0]);
+        this.charset = charset;
+        this.regionSize = regionSize;
+        this.parallelThreshold = parallelThreshold;
+        this.minRangeSize = Math.min(minRangeSize, regionSize);
+
+        int longest = 0;
+
+        // Build the trie of all keywords.
+        List<int[]> trie = new ArrayList<int[]>();
+        List<List<Integer>> output = new ArrayList<List<Integer>>();
+        trie.add(newState());
+        output.add(new ArrayList<Integer>());
+        for (int k = 0; k < this.keywords.length; k++) {
+            byte[] bytes = this.keywords[k].getBytes(charset);
+            if (bytes.length == 0) {
+                throw new IllegalArgumentException("Keywords cannot be empty.");
+            }
+            longest = Math.max(longest, bytes.length);
+            int state = 0;
+            for (byte b : bytes) {
+                int c = b & 0xff;
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    output.add(new ArrayList<Integer>());
+                }
+                state = trie.get(state)[c];
+            }
+            output.get(state).add(k);
+        }
+        this.maxLineBytes = longest + MAX_LINE_LENGTH;
+
+        // Turn it into a complete automaton, breadth first, so failure states are always done before they are used.
+        int[] failure = new int[trie.size()];
+        int[] queue = new int[trie.size()];
+        int head = 0;
+        int tail = 0;
+        int[] root = trie.get(0);
+        for (int c = 0; c < 256; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                failure[root[c]] = 0;
+                queue[tail++] = root[c];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int[] next = trie.get(state);
+            output.get(state).addAll(output.get(failure[state]));
+            for (int c = 0; c < 256; c++) {
+                if (next[c] < 0) {
+                    next[c] = trie.get(failure[state])[c];
+                } else {
+                    failure[next[c]] = trie.get(failure[state])[c];
+                    queue[tail++] = next[c];
+                }
+            }
+        }
+
+        this.transitions = trie.toArray(new int[trie.size()][]);
+        this.matches = new int[trie.size()][];
+        for (int state = 0; state < trie.size(); state++) {
+            List<Integer> found = output.get(state);
+            if (!found.isEmpty()) {
+                this.matches[state] = new int[found.size()];
+                for (int i = 0; i < found.size(); i++) {
+                    this.matches[state][i] = found.get(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * A matching line of the log.
+     * Lines longer than {@link #MAX_LINE_LENGTH} are cut off, the length is that of the text that was kept.
+     */
+    public static final class Line {
+        @Getter private final long offset;
+        @Getter private final int length;
+        @Getter private final String text;
+
+        Line(long offset, int length, String text) {
+            this.offset = offset;
+            this.length = length;
+            this.text = text;
+        }
+    }
+
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    /**
+     * Scans a log file, which may be gzip compressed.
+     * @return Matching lines per keyword, in the order of the keywords and of the lines in the log.
+     */
+    public Map<String, List<String>> scan(File logFile) throws IOException {
+        return texts(scanLines(logFile));
+    }
+
+    /**
+     * Scans a log file, which may be gzip compressed, keeping the position of every matching line.
+     * Offsets of a compressed log are offsets in its uncompressed content.
+     * @return Matching lines per keyword, in the order of the keywords and of the lines in the log.
+     */
+    public Map<String, List<Line>> scanLines(File logFile) throws IOException {
+        if (logFile.getName().endsWith(".gz")) {
+            InputStream in = new GZIPInputStream(new FileInputStream(logFile), STREAM_BUFFER_SIZE);
+            try {
+                return scanLines(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        FileInputStream in = new FileInputStream(logFile);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > this.parallelThreshold) {
+                ForkJoinPool pool = getPool();
+                long rangeSize = Math.max(this.minRangeSize,
+                        Math.min(this.regionSize, size / (pool.getParallelism() * 4L)));
+                try {
+                    return pool.invoke(new RangeTask(channel, size, 0, size, rangeSize));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+
+            Scan scan = new Scan(0);
+            for (long position = 0; position < size; position += this.regionSize) {
+                scan.feed(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(this.regionSize, size - position)), position, false);
+            }
+            return scan.finish();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, PARALLELISM));
+        }
+        return pool;
+    }
+
+    @Terminator
+    public static synchronized void shutdownPool() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Scans a log from a stream, the stream is not closed.
+     * @return Matching lines per keyword, in the order of the keywords and of the lines in the log.
+     */
+    public Map<String, List<String>> scan(InputStream in) throws IOException {
+        return texts(scanLines(in));
+    }
+
+    /**
+     * Scans a log from a stream, keeping the position of every matching line. The stream is not closed.
+     * @return Matching lines per keyword, in the order of the keywords and of the lines in the log.
+     */
+    public Map<String, List<Line>> scanLines(InputStream in) throws IOException {
+        Scan scan = new Scan(0);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long position = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            scan.feed(ByteBuffer.wrap(buffer, 0, read), position, false);
+            position += read;
+        }
+        return scan.finish();
+    }
+
+    private static Map<String, List<String>> texts(Map<String, List<Line>> lines) {
+        Map<String, List<String>> texts = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<Line>> entry : lines.entrySet()) {
+            List<String> found = new ArrayList<String>(entry.getValue().size());
+            for (Line line : entry.getValue()) {
+                found.add(line.getText());
+            }
+            texts.put(entry.getKey(), found);
+        }
+        return texts;
+    }
+
+    /**
+     * Scans the lines that start in a range of the log file, splitting it up further if it is large.
+     * The last line of a range is read up to its end, even when that lies beyond the range; the next range
+     * skips it in turn. Results of the halves are joined in order, so the lines stay in log order.
+     */
+    private final class RangeTask extends RecursiveTask<Map<String, List<Line>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final long start;
+        private final long end;
+        private final long rangeSize;
+
+        RangeTask(FileChannel channel, long size, long start, long end, long rangeSize) {
+            this.channel = channel;
+            this.size = size;
+            this.start = start;
+            this.end = end;
+            this.rangeSize = rangeSize;
+        }
+
+        @Override
+        protected Map<String, List<Line>> compute() {
+            try {
+                if (this.end - this.start > this.rangeSize) {
+                    long middle = this.start + (this.end - this.start) / 2;
+                    RangeTask second = new RangeTask(this.channel, this.size, middle, this.end, this.rangeSize);
+                    second.fork();
+                    Map<String, List<Line>> results =
+                            new RangeTask(this.channel, this.size, this.start, middle, this.rangeSize).compute();
+                    for (Map.Entry<String, List<Line>> entry : second.join().entrySet()) {
+                        results.get(entry.getKey()).addAll(entry.getValue());
+                    }
+                    return results;
+                }
+                return scanRange();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Map<String, List<Line>> scanRange() throws IOException {
+            // Include the byte before the range, to find out whether the range starts with a new line.
+            long mapStart = Math.max(0, this.start - 1);
+            ByteBuffer range = this.channel.map(FileChannel.MapMode.READ_ONLY, mapStart, this.end - mapStart);
+            if (this.start > 0) {
+                // Skip the line that started in the range before this one.
+                int position = 0;
+                while (position < range.limit() && range.get(position) != '\n') {
+                    position++;
+                }
+                if (position == range.limit()) {
+                    return new Scan(this.start).finish();
+                }
+                range.position(position + 1);
+            }
+            Scan scan = new Scan(mapStart + range.position());
+            scan.feed(range, mapStart, false);
+
+            // Read on until the end of the last line.
+            long position = this.end;
+            boolean lineEnded = range.limit() == 0 || range.get(range.limit() - 1) == '\n';
+            while (!lineEnded && position < this.size) {
+                long length = Math.min(regionSize, this.size - position);
+                lineEnded = scan.feed(this.channel.map(FileChannel.MapMode.READ_ONLY, position, length), position, true);
+                position += length;
+            }
+            return scan.finish();
+        }
+    }
+
+    /**
+     * Lets an IOException out of a {@link RangeTask}, which cannot throw checked exceptions.
+     */
+    private static final class UncheckedIOException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UncheckedIOException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * State of a single scan, fed with consecutive pieces of the log.
+     */
+    private final class Scan {
+        private final Map<String, List<Line>> results = new LinkedHashMap<String, List<Line>>();
+
+        /** Start of the current line that was in an earlier piece, at most {@link #maxLineBytes} of it. */
+        private final ByteArrayOutputStream carry = new ByteArrayOutputStream();
+
+        /** Keywords found in the current line. */
+        private final boolean[] found = new boolean[keywords.length];
+        private boolean foundAny;
+
+        private int state;
+
+        /** Offset in the log of the current line. */
+        private long lineOffset;
+
+        /**
+         * @param offset Offset in the log of the first line that is fed.
+         */
+        Scan(long offset) {
+            this.lineOffset = offset;
+            for (String keyword : keywords) {
+                this.results.put(keyword, new ArrayList<Line>());
+            }
+        }
+
+        /**
+         * @param base Offset in the log of index 0 of the buffer.
+         * @param stopAtLineEnd Stop after the first line end, instead of reading the whole buffer.
+         * @return Whether it stopped at a line end.
+         */
+        boolean feed(ByteBuffer buffer, long base, boolean stopAtLineEnd) {
+            int limit = buffer.limit();
+            int lineStart = buffer.position();
+            for (int i = lineStart; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    if (this.foundAny) {
+                        emit(buffer, lineStart, i);
+                    }
+                    this.carry.reset();
+                    this.state = 0;
+                    this.lineOffset = base + i + 1;
+                    if (stopAtLineEnd) {
+                        return true;
+                    }
+                    lineStart = i + 1;
+                    continue;
+                }
+                this.state = transitions[this.state][b & 0xff];
+                int[] ended = matches[this.state];
+                if (ended != null) {
+                    for (int keyword : ended) {
+                        this.found[keyword] = true;
+                    }
+                    this.foundAny = true;
+                }
+            }
+            // Keep the unfinished line, it may still turn out to match.
+            keep(buffer, lineStart, limit);
+            return false;
+        }
+
+        Map<String, List<Line>> finish() {
+            if (this.foundAny) {
+                emit(ByteBuffer.allocate(0), 0, 0);
+            }
+            return this.results;
+        }
+
+        /**
+         * Adds part of the buffer to the carried line, as far as it fits.
+         */
+        private void keep(ByteBuffer buffer, int start, int end) {
+            int length = Math.min(end - start, maxLineBytes - this.carry.size());
+            if (length <= 0) {
+                return;
+            }
+            if (buffer.hasArray()) {
+                this.carry.write(buffer.array(), buffer.arrayOffset() + start, length);
+            } else {
+                byte[] bytes = new byte[length];
+                ByteBuffer piece = buffer.duplicate();
+                piece.position(start);
+                piece.get(bytes);
+                this.carry.write(bytes, 0, length);
+            }
+        }
+
+        private void emit(ByteBuffer buffer, int start, int end) {
+            keep(buffer, start, end);
+            byte[] line = this.carry.toByteArray();
+            int length = line.length;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            Line decoded = new Line(this.lineOffset, length, new String(line, 0, length, charset));
+            for (int keyword = 0; keyword < this.found.length; keyword++) {
+                if (this.found[keyword]) {
+                    this.results.get(keywords[keyword]).add(decoded);
+                    this.found[keyword] = false;
+                }
+            }
+            this.foundAny = false;
+        }
+    }
+}
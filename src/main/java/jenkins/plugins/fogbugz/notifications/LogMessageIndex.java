@@ -0,0 +1,188 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.model.AbstractBuild;
+import lombok.extern.java.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Index of the lines with a keyword in a build log, stored next to the log.
+ * It holds the offset and length of every matching line, so they can be read back without scanning the whole log.
+ * The index is built on first use, and built again when the size or modification time of the log changed.
+ * Compressed logs cannot be read at an offset, those are always scanned.
+ */
+@Log
+public class LogMessageIndex {
+
+    public static final String FILE_NAME = "fogbugz-report-messages.index";
+
+    private static final int VERSION = 1;
+
+    /** Bytes per indexed line: its offset and its length. */
+    private static final int ENTRY_SIZE = 8 + 4;
+
+    private final File logFile;
+    private final File indexFile;
+    private final String keyword;
+    private final Charset charset;
+
+    public LogMessageIndex(File logFile, File indexFile, String keyword, Charset charset) {
+        this.logFile = logFile;
+        this.indexFile = indexFile;
+        this.keyword = keyword;
+        this.charset = charset;
+    }
+
+    public static LogMessageIndex forBuild(AbstractBuild build, String keyword, Charset charset) {
+        return new LogMessageIndex(build.getLogFile(), new File(build.getRootDir(), FILE_NAME), keyword, charset);
+    }
+
+    /**
+     * @return The log lines that contain the keyword, in the order they were logged.
+     */
+    public List<String> getMessages() throws IOException {
+        LogKeywordScanner scanner = new LogKeywordScanner(Collections.singletonList(this.keyword), this.charset);
+        if (this.logFile.getName().endsWith(".gz")) {
+            return scanner.scan(this.logFile).get(this.keyword);
+        }
+
+        // Take these before reading anything, so a log that grows meanwhile makes the index outdated.
+        long logLength = this.logFile.length();
+        long logModified = this.logFile.lastModified();
+        long[] positions = read(logLength, logModified);
+        if (positions != null) {
+            return readLines(positions);
+        }
+
+        List<LogKeywordScanner.Line> lines = scanner.scanLines(this.logFile).get(this.keyword);
+        List<String> messages = new ArrayList<String>(lines.size());
+        for (LogKeywordScanner.Line line : lines) {
+            messages.add(line.getText());
+        }
+        try {
+            write(logLength, logModified, lines);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Cannot write " + this.indexFile + ", the log will be scanned again next time.", e);
+        }
+        return messages;
+    }
+
+    /**
+     * @return Offset and length of every indexed line, one after the other, or null if there is no usable index.
+     */
+    private long[] read(long logLength, long logModified) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != VERSION || in.readLong() != logLength || in.readLong() != logModified
+                    || !in.readUTF().equals(this.keyword) || !in.readUTF().equals(this.charset.name())) {
+                return null;
+            }
+            int count = in.readInt();
+            // Check the count against what is left of the file, so a damaged index cannot ask for a huge array.
+            long left = this.indexFile.length() - headerLength();
+            if (count < 0 || (long) count * ENTRY_SIZE != left) {
+                log.log(Level.INFO, "Index " + this.indexFile + " does not match its size, building it again.");
+                return null;
+            }
+            long[] positions = new long[count * 2];
+            for (int i = 0; i < positions.length; i += 2) {
+                positions[i] = in.readLong();
+                positions[i + 1] = in.readInt();
+                if (positions[i] < 0 || positions[i + 1] < 0 || positions[i] + positions[i + 1] > logLength) {
+                    log.log(Level.INFO, "Index " + this.indexFile + " points outside the log, building it again.");
+                    return null;
+                }
+            }
+            return positions;
+        } catch (EOFException e) {
+            log.log(Level.INFO, "Incomplete index " + this.indexFile + ", building it again.");
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Number of bytes {@link #write} puts before the first entry.
+     */
+    private int headerLength() {
+        return 4 + 8 + 8 + utfLength(this.keyword) + utfLength(this.charset.name()) + 4;
+    }
+
+    /**
+     * @return Number of bytes {@link DataOutputStream#writeUTF} writes for the string.
+     */
+    private static int utfLength(String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length += 1;
+            } else if (c > 0x07ff) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private List<String> readLines(long[] positions) throws IOException {
+        List<String> messages = new ArrayList<String>(positions.length / 2);
+        RandomAccessFile log = new RandomAccessFile(this.logFile, "r");
+        try {
+            for (int i = 0; i < positions.length; i += 2) {
+                byte[] line = new byte[(int) positions[i + 1]];
+                log.seek(positions[i]);
+                log.readFully(line);
+                messages.add(new String(line, this.charset));
+            }
+        } finally {
+            log.close();
+        }
+        return messages;
+    }
+
+    private void write(long logLength, long logModified, List<LogKeywordScanner.Line> lines) throws IOException {
+        File tmp = new File(this.indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(logLength);
+            out.writeLong(logModified);
+            out.writeUTF(this.keyword);
+            out.writeUTF(this.charset.name());
+            out.writeInt(lines.size());
+            for (LogKeywordScanner.Line line : lines) {
+                out.writeLong(line.getOffset());
+                out.writeInt(line.getLength());
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), this.indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
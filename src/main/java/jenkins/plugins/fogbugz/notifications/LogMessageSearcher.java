@@ -2,12 +2,9 @@ package jenkins.plugins.fogbugz.notifications;
 
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
 import java.util.List;
 
 /**
@@ -18,6 +15,8 @@ public class LogMessageSearcher {
 
     public static String DEFAULT_MESSAGE_KEYWORD = "[BuildReportMessage]";
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public LogMessageSearcher(AbstractBuild build) {
         this.build = build;
     }
@@ -36,33 +35,23 @@ public class LogMessageSearcher {
     }
 
     public List<String> searchForMessages() throws IOException {
+        // Messages were already picked up while the log was written, no need to read it again.
+        FogbugzReportMessagesAction action = build.getAction(FogbugzReportMessagesAction.class);
+        List<String> messages = action != null ? action.getMessages() : null;
+        if (messages != null) {
+            return messages;
+        }
         // Search with default keyword to look for.
         return this.searchForMessages(DEFAULT_MESSAGE_KEYWORD);
     }
 
     /**
-     * Searches build log for messages.
+     * Searches build log for messages, using the {@link LogMessageIndex} of the build when it is still valid.
      * @param keyword Keyword to look for in log.
      * @return List of messages found.
      */
     public List<String> searchForMessages(String keyword) throws IOException {
-        final File logFile = build.getLogFile();
-        LineIterator it = FileUtils.lineIterator(logFile, "UTF-8");
-
-        List<String> resultList = new ArrayList<String>();
-
-        try {
-            while (it.hasNext()) {
-                String line = it.nextLine();
-                if (line.contains(keyword)) {
-                    resultList.add(line);
-                }
-            }
-        } finally {
-            it.close();
-        }
-
-        return resultList;
+        return LogMessageIndex.forBuild(build, keyword, UTF8).getMessages();
     }
 
 }
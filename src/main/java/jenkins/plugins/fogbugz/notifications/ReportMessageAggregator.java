@@ -0,0 +1,192 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the report messages of a build for the case edit, within a size limit.
+ * Repeated messages are listed once, with the number of times they were logged.
+ * When the messages do not fit, the first and the last ones are kept and the ones in between are left out.
+ * It goes into the report template as is, its {@link #toString()} is only called when the template is rendered.
+ */
+public class ReportMessageAggregator {
+
+    /** Maximum size of the messages in the report, in UTF-8 bytes. */
+    public static final int MAX_BYTES =
+            Integer.getInteger(ReportMessageAggregator.class.getName() + ".maxBytes", 32 * 1024);
+
+    private final int headBytes;
+    private final int tailBytes;
+
+    /** First messages, with the number of times they were logged. */
+    private final Map<String, int[]> head = new LinkedHashMap<String, int[]>();
+    private int headSize;
+    private boolean headFull;
+
+    /** Last messages after the head, oldest first. */
+    private final LinkedHashMap<String, int[]> tail = new LinkedHashMap<String, int[]>();
+    private int tailSize;
+
+    /** Number of messages left out between head and tail. */
+    private int omitted;
+
+    private final List<String> notes = new ArrayList<String>();
+
+    public ReportMessageAggregator() {
+        this(MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes Maximum size of the messages, half of it is for the first messages and half for the last.
+     */
+    public ReportMessageAggregator(int maxBytes) {
+        this.headBytes = maxBytes / 2;
+        this.tailBytes = maxBytes - this.headBytes;
+    }
+
+    public void add(String message) {
+        int[] count = this.head.get(message);
+        if (count == null) {
+            count = this.tail.get(message);
+        }
+        if (count != null) {
+            count[0]++;
+            return;
+        }
+
+        if (!this.headFull) {
+            int size = size(message);
+            if (this.headSize + size <= this.headBytes) {
+                this.head.put(message, new int[] {1});
+                this.headSize += size;
+                return;
+            }
+            this.headFull = true;
+        }
+
+        message = truncate(message, this.tailBytes);
+        count = this.tail.get(message);
+        if (count != null) {
+            count[0]++;
+            return;
+        }
+        this.tail.put(message, new int[] {1});
+        this.tailSize += size(message);
+        Iterator<Map.Entry<String, int[]>> oldest = this.tail.entrySet().iterator();
+        while (this.tailSize > this.tailBytes) {
+            Map.Entry<String, int[]> entry = oldest.next();
+            this.tailSize -= size(entry.getKey());
+            this.omitted += entry.getValue()[0];
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Adds text after the messages, which is always included.
+     */
+    public void addNote(String note) {
+        this.notes.add(note);
+    }
+
+    public int getOmitted() {
+        return this.omitted;
+    }
+
+    /**
+     * @return Whether there is no text at all, neither messages nor notes.
+     */
+    public boolean isEmpty() {
+        return this.head.isEmpty() && this.tail.isEmpty() && this.omitted == 0 && this.notes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(this.headSize + this.tailSize + 64);
+        append(out, this.head);
+        if (this.omitted > 0) {
+            out.append("... ").append(this.omitted).append(" more messages left out ...\n");
+        }
+        append(out, this.tail);
+        for (String note : this.notes) {
+            out.append(note);
+        }
+        return out.toString();
+    }
+
+    private static void append(StringBuilder out, Map<String, int[]> messages) {
+        for (Map.Entry<String, int[]> entry : messages.entrySet()) {
+            out.append(entry.getKey());
+            if (entry.getValue()[0] > 1) {
+                out.append(" (").append(entry.getValue()[0]).append(" times)");
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * @return Size of the message and its line end in UTF-8 bytes.
+     */
+    private static int size(String message) {
+        int size = 1;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Shortens a message that is larger than the limit on its own.
+     */
+    private static String truncate(String message, int maxBytes) {
+        if (size(message) <= maxBytes) {
+            return message;
+        }
+        String marker = " ...";
+        int end = Math.min(message.length(), maxBytes);
+        while (end > 0 && size(message.substring(0, end)) + marker.length() > maxBytes) {
+            end = end * 3 / 4;
+        }
+        if (end > 0 && Character.isHighSurrogate(message.charAt(end - 1))) {
+            end--;
+        }
+        return message.substring(0, end) + marker;
+    }
+
+    /**
+     * Shortens a text that is larger than the limit by leaving out its start, e.g. older reports that were merged
+     * with a newer one.
+     */
+    static String keepEnd(String text, int maxBytes) {
+        if (size(text) <= maxBytes) {
+            return text;
+        }
+        String marker = "... earlier messages left out ...\n";
+        int budget = maxBytes - marker.length();
+        int start = text.length();
+        int bytes = 0;
+        while (start > 0) {
+            char c = text.charAt(start - 1);
+            boolean pair = Character.isLowSurrogate(c) && start > 1;
+            int charBytes = c < 0x80 ? 1 : c < 0x800 ? 2 : pair ? 4 : 3;
+            if (bytes + charBytes > budget) {
+                break;
+            }
+            bytes += charBytes;
+            start -= pair ? 2 : 1;
+        }
+        return marker + text.substring(start);
+    }
+}
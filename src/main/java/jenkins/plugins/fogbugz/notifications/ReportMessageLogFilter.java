@@ -0,0 +1,84 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.Extension;
+import hudson.console.ConsoleLogFilter;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Picks up report messages (see {@link LogMessageSearcher#logMessage}) while they are written to the build log,
+ * and stores them in a {@link FogbugzReportMessagesAction} on the builds of jobs with a {@link FogbugzNotifier}.
+ * Only lines containing the keyword are decoded, all other lines are passed on untouched. The keyword is looked for
+ * in the charset of the build, the one its log is written in.
+ */
+@Extension
+public class ReportMessageLogFilter extends ConsoleLogFilter {
+
+    @Override
+    public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) {
+        // Only builds that report to Fogbugz need the messages.
+        if (build.getProject().getPublishersList().get(FogbugzNotifier.class) == null) {
+            return logger;
+        }
+        FogbugzReportMessagesAction action = new FogbugzReportMessagesAction();
+        build.addAction(action);
+        return new CapturingOutputStream(logger, action, build.getCharset());
+    }
+
+    private static final class CapturingOutputStream extends LineTransformationOutputStream {
+        private final OutputStream out;
+        private final FogbugzReportMessagesAction action;
+        private final Charset charset;
+        private final byte[] keyword;
+
+        CapturingOutputStream(OutputStream out, FogbugzReportMessagesAction action, Charset charset) {
+            this.out = out;
+            this.action = action;
+            this.charset = charset;
+            this.keyword = LogMessageSearcher.DEFAULT_MESSAGE_KEYWORD.getBytes(charset);
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            this.out.write(b, 0, len);
+            if (contains(b, len, this.keyword)) {
+                int end = len;
+                while (end > 0 && (b[end - 1] == '\n' || b[end - 1] == '\r')) {
+                    end--;
+                }
+                this.action.add(new String(b, 0, end, this.charset));
+            }
+        }
+
+        private static boolean contains(byte[] b, int len, byte[] keyword) {
+            outer:
+            for (int i = 0; i <= len - keyword.length; i++) {
+                if (b[i] != keyword[0]) {
+                    continue;
+                }
+                for (int j = 1; j < keyword.length; j++) {
+                    if (b[i + j] != keyword[j]) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            this.out.close();
+        }
+    }
+}
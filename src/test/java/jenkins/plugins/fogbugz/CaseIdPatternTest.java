@@ -0,0 +1,28 @@
+package jenkins.plugins.fogbugz;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaseIdPatternTest {
+
+    @Test
+    public void testFindsDigitGroup() {
+        assertEquals(1, CaseIdPattern.findDigitGroup("CASE-([0-9]*)"));
+        assertEquals(0, CaseIdPattern.findDigitGroup("\\d+"));
+        assertEquals(2, CaseIdPattern.findDigitGroup("(\\w+)-(\\d+)"));
+        assertEquals(1, CaseIdPattern.findDigitGroup("(?:fix|case) #?(?<id>[0-9]{1,7})"));
+        assertEquals(2, CaseIdPattern.findDigitGroup("([a-z]+)\\(([0-9]+)\\)"));
+        assertEquals(1, CaseIdPattern.findDigitGroup("[(]([0-9]+)"));
+        assertEquals(-1, CaseIdPattern.findDigitGroup("bug(s)?"));
+    }
+
+    @Test
+    public void testInvalidRegex() {
+        CaseIdPattern pattern = new CaseIdPattern("CASE-([0-9]*");
+        assertFalse(pattern.isValid());
+        assertTrue(new CaseIdPattern("CASE-([0-9]*)").isValid());
+    }
+}
@@ -0,0 +1,100 @@
+package jenkins.plugins.fogbugz;
+
+import org.junit.Test;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzManager;
+import org.paylogic.fogbugz.NoSuchCaseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class CaseSummaryCacheTest {
+
+    private final FogbugzManager manager = mock(FogbugzManager.class);
+
+    /** Fetches that were started, run by the test when it wants. */
+    private final List<Runnable> fetches = new ArrayList<Runnable>();
+
+    private CaseSummaryCache createCache(int maxPending) {
+        return new CaseSummaryCache(new Executor() {
+            public void execute(Runnable command) {
+                fetches.add(command);
+            }
+        }, maxPending) {
+            @Override
+            FogbugzManager getFogbugzManager() {
+                return manager;
+            }
+        };
+    }
+
+    private void runFetches() {
+        for (Runnable fetch : this.fetches) {
+            fetch.run();
+        }
+        this.fetches.clear();
+    }
+
+    private static FogbugzCase newCase(int id, boolean open) {
+        return new FogbugzCase(id, "Case " + id, 2, 2, "", open,
+                "maikelwever/repo1#c7", "r1336", "r1336", "1336", "myproject", "some revision");
+    }
+
+    @Test
+    public void testBatchSearch() throws Exception {
+        given(manager.searchForCases("ixBug:1,2,3")).willReturn(Arrays.asList(newCase(1, true), newCase(2, false)));
+        CaseSummaryCache cache = this.createCache(100);
+
+        cache.request(Arrays.asList(1, 2, 3));
+        // Asking again while they are being fetched does not search again.
+        cache.request(Arrays.asList(1, 2, 3));
+        assertEquals(1, this.fetches.size());
+        assertNull(cache.get(1));
+        this.runFetches();
+
+        assertEquals("Case 1", cache.get(1).getTitle());
+        assertTrue(cache.get(1).isOpen());
+        assertFalse(cache.get(2).isOpen());
+        // Not found, remembered so it is not searched for again.
+        assertFalse(cache.get(3).exists());
+        cache.request(Arrays.asList(1, 2, 3));
+        assertTrue(this.fetches.isEmpty());
+    }
+
+    @Test
+    public void testNoneFound() throws Exception {
+        given(manager.searchForCases("ixBug:4")).willThrow(new NoSuchCaseException("4"));
+        CaseSummaryCache cache = this.createCache(100);
+
+        cache.request(Arrays.asList(4));
+        this.runFetches();
+        assertFalse(cache.get(4).exists());
+    }
+
+    @Test
+    public void testLimitsPending() throws Exception {
+        given(manager.searchForCases(anyString())).willReturn(new ArrayList<FogbugzCase>());
+        CaseSummaryCache cache = this.createCache(3);
+
+        cache.request(Arrays.asList(1, 2, 3, 4, 5));
+        cache.request(Arrays.asList(6));
+        this.runFetches();
+        verify(manager).searchForCases("ixBug:1,2,3");
+
+        // Once those are done, the rest can be fetched.
+        cache.request(Arrays.asList(4, 5));
+        this.runFetches();
+        verify(manager).searchForCases("ixBug:4,5");
+    }
+}
@@ -0,0 +1,47 @@
+package jenkins.plugins.fogbugz;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class FogbugzChangelogSpansActionTest {
+
+    @Test
+    public void testSpansOfCommit() {
+        CaseIdPattern pattern = new CaseIdPattern("CASE-([0-9]*)");
+        String message = "CASE-12 and CASE-345, not CASE-x";
+        int[] spans = FogbugzChangelogSpansAction.findSpans(message, pattern);
+        FogbugzChangelogSpansAction action = new FogbugzChangelogSpansAction(pattern.getRegex(),
+                Collections.singletonMap("abc123", spans), new int[] {12, 345, 6});
+
+        assertArrayEquals(new int[] {0, 7, 12, 12, 20, 345}, action.getSpans("abc123", message));
+        assertEquals(new LinkedHashSet<Integer>(Arrays.asList(12, 345, 6)), action.getIds());
+        assertNull(action.getSpans("def456", message));
+        assertNull(action.getSpans(null, message));
+        assertFalse(action.isCurrent("other-([0-9]*)"));
+    }
+
+    @Test
+    public void testSpansBeyondMessageAreNotUsed() {
+        CaseIdPattern pattern = new CaseIdPattern("CASE-([0-9]*)");
+        int[] spans = FogbugzChangelogSpansAction.findSpans("fixed CASE-12", pattern);
+        FogbugzChangelogSpansAction action = new FogbugzChangelogSpansAction(pattern.getRegex(),
+                Collections.singletonMap("abc123", spans), new int[] {12});
+
+        assertArrayEquals(new int[] {6, 13, 12}, action.getSpans("abc123", "fixed CASE-12"));
+        assertNull(action.getSpans("abc123", "CASE-12"));
+    }
+
+    @Test
+    public void testOldActionIsNotCurrent() {
+        FogbugzChangelogSpansAction action = new FogbugzChangelogSpansAction("CASE-([0-9]*)", null, null);
+        assertFalse(action.isCurrent("CASE-([0-9]*)"));
+    }
+}
@@ -0,0 +1,127 @@
+package jenkins.plugins.fogbugz.jobpoller;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import jenkins.plugins.fogbugz.jobtrigger.FogbugzEventListener;
+import jenkins.plugins.fogbugz.notifications.FogbugzNotifier;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzManager;
+import org.paylogic.fogbugz.FogbugzUser;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FogbugzPollCoordinatorTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Mock
+    private FogbugzNotifier notifier;
+    @Mock
+    private FogbugzManager manager;
+    @Mock
+    private FogbugzNotifier.DescriptorImpl notifierDescriptor;
+
+    @Test
+    public void testSharedSearch() throws Exception {
+        given(notifier.getFogbugzManager()).willReturn(manager);
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
+        given(notifier.getDescriptor()).willReturn(notifierDescriptor);
+        given(notifierDescriptor.getSuccessfulBuildTag()).willReturn("merged");
+        given(manager.getMergekeeperUserId()).willReturn(2);
+        given(manager.getFogbugzUser(2)).willReturn(new FogbugzUser(2, "test user"));
+        FogbugzCase caseA = new FogbugzCase(7, "HALLO!", 2, 2, "", true,
+                "maikelwever/repo1#c7", "r1336", "r1336", "1336", "project_a", "some revision");
+        FogbugzCase caseB = new FogbugzCase(8, "HALLO!", 2, 2, "", true,
+                "maikelwever/repo1#c8", "r1336", "r1336", "1336", "project_b", "some revision");
+        String query = "assignedto:\"test user\" (cixproject:\"project_a\" OR cixproject:\"project_b\")";
+        given(manager.searchForCases(query)).willReturn(Arrays.asList(caseA, caseB));
+
+        FogbugzStatePoller pollerA = this.createPoller("project_a");
+        FogbugzStatePoller pollerB = this.createPoller("project_b");
+
+        new FogbugzPollCoordinator(0).poll(notifier, "cixproject", Arrays.asList(pollerA, pollerB),
+                new FogbugzEventListener());
+
+        // One search for both jobs, and every job gets the cases of its project.
+        verify(manager, times(1)).searchForCases(anyString());
+        assertEquals("CASE_ID=7", j.jenkins.getItemByFullName("project_a", FreeStyleProject.class)
+                .getQueueItem().getParams().trim());
+        assertEquals("CASE_ID=8", j.jenkins.getItemByFullName("project_b", FreeStyleProject.class)
+                .getQueueItem().getParams().trim());
+    }
+
+    @Test
+    public void testFailedUserLookup() throws Exception {
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
+        given(manager.getMergekeeperUserId()).willReturn(2);
+        given(manager.getFogbugzUser(2)).willThrow(new IllegalStateException("no user"));
+        FogbugzStatePoller poller = this.createPoller("project_a");
+
+        new FogbugzPollCoordinator(0).poll(notifier, "cixproject", Arrays.asList(poller), new FogbugzEventListener());
+
+        assertEquals(1, poller.getSchedule().getFailures());
+    }
+
+    @Test
+    public void testFailedSearch() throws Exception {
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
+        given(manager.getMergekeeperUserId()).willReturn(2);
+        given(manager.getFogbugzUser(2)).willReturn(new FogbugzUser(2, "test user"));
+        given(manager.searchForCases(anyString())).willThrow(new IllegalStateException("broken response"));
+        FogbugzStatePoller pollerA = this.createPoller("project_a");
+        FogbugzStatePoller pollerB = this.createPoller("project_b");
+
+        new FogbugzPollCoordinator(0).poll(notifier, "cixproject", Arrays.asList(pollerA, pollerB),
+                new FogbugzEventListener());
+
+        assertEquals(1, pollerA.getSchedule().getFailures());
+        assertEquals(1, pollerB.getSchedule().getFailures());
+    }
+
+    @Test
+    public void testFailedScheduling() throws Exception {
+        given(notifier.getFogbugzManager()).willReturn(manager);
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
+        given(manager.getMergekeeperUserId()).willReturn(2);
+        given(manager.getFogbugzUser(2)).willReturn(new FogbugzUser(2, "test user"));
+        FogbugzCase caseA = new FogbugzCase(7, "HALLO!", 2, 2, "", true,
+                "maikelwever/repo1#c7", "r1336", "r1336", "1336", "project_a", "some revision");
+        given(manager.searchForCases(anyString())).willReturn(Arrays.asList(caseA));
+        FogbugzEventListener listener = mock(FogbugzEventListener.class);
+        given(listener.scheduleJobs(any(FogbugzNotifier.class), anyCollectionOf(FogbugzCase.class), anyString(),
+                anyString(), anyBoolean())).willThrow(new IllegalStateException("cannot schedule"));
+        FogbugzStatePoller poller = this.createPoller("project_a");
+
+        new FogbugzPollCoordinator(0).poll(notifier, "cixproject", Arrays.asList(poller), listener);
+
+        assertEquals(1, poller.getSchedule().getFailures());
+        assertEquals(1, poller.getSchedule().getPolls());
+    }
+
+    private FogbugzStatePoller createPoller(String name) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject(name);
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("CASE_ID", "")));
+        FogbugzStatePoller poller = new FogbugzStatePoller("1 1 1 1 1", name, "cixproject");
+        poller.start(project, false);
+        return poller;
+    }
+}
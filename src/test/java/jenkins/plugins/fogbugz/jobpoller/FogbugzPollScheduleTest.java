@@ -0,0 +1,47 @@
+package jenkins.plugins.fogbugz.jobpoller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FogbugzPollScheduleTest {
+
+    @Test
+    public void testBackOff() {
+        FogbugzPollSchedule schedule = new FogbugzPollSchedule(60000, 300000, 10000);
+        long now = 1000000;
+        assertTrue(schedule.request(now));
+
+        // Nothing found: 2, 4, then the ceiling of 5 minutes.
+        schedule.polled(now + 5000, 100, 0);
+        assertEquals(120000, schedule.getInterval());
+        assertFalse(schedule.request(now + 60000));
+        now += 120000;
+        assertTrue(schedule.request(now));
+        schedule.polled(now, 100, 0);
+        assertEquals(240000, schedule.getInterval());
+        now += 240000;
+        assertTrue(schedule.request(now));
+        schedule.failed(now);
+        assertEquals(300000, schedule.getInterval());
+        assertEquals(1, schedule.getFailures());
+
+        // A poll that scheduled builds goes back to the shortest interval, unless it was slow.
+        now += 300000;
+        assertTrue(schedule.request(now));
+        schedule.polled(now, 100, 3);
+        assertEquals(60000, schedule.getInterval());
+        now += 60000;
+        assertTrue(schedule.request(now - 1000));
+        schedule.polled(now, 20000, 1);
+        assertEquals(120000, schedule.getInterval());
+        assertEquals(1, schedule.getSlowPolls());
+
+        assertEquals(5, schedule.getPolls());
+        assertEquals(2, schedule.getPollsWithBuilds());
+        // Counted from the requests: 120, 240, 300 and 59 seconds.
+        assertEquals((120000 + 240000 + 300000 + 59000) / 4, schedule.getAverageInterval());
+    }
+}
@@ -15,14 +15,23 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.paylogic.fogbugz.FogbugzCase;
 import org.paylogic.fogbugz.FogbugzManager;
 import org.paylogic.fogbugz.FogbugzUser;
+import org.paylogic.fogbugz.NoSuchCaseException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TimeZone;
 
 import static java.lang.Thread.*;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 
 @Log
@@ -37,12 +46,15 @@ public class FogbugzStatePollerTest {
     @Mock
     private FogbugzManager manager;
     @Mock
+    private FogbugzManager defaultManager;
+    @Mock
     private FogbugzNotifier.DescriptorImpl notifierDescriptor;
 
 
     @Test
     public void testRun() throws Exception {
         given(notifier.getFogbugzManager()).willReturn(manager);
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
         FogbugzUser fogbugzUser = new FogbugzUser(2, "test user");
         FogbugzCase expected = new FogbugzCase(7, "HALLO!", fogbugzUser.ix, fogbugzUser.ix, "tag", true,
                 "maikelwever/repo1#c7", "r1336", "r1336", "1336", "myproject_mergekeepers", "some revision");
@@ -68,7 +80,7 @@ public class FogbugzStatePollerTest {
             }
         });
         poller.start(project, false);
-        poller.doRun(notifier, manager, new FogbugzEventListener());
+        this.poll(poller);
         sleep(10);
         Queue.Item[] items = Queue.getInstance().getItems();
         assertEquals(1, items.length);
@@ -77,7 +89,7 @@ public class FogbugzStatePollerTest {
             sleep(10);
         }
         // should not schedule the build if it's building with same case id
-        poller.doRun(notifier, manager, new FogbugzEventListener());
+        this.poll(poller);
         sleep(10);
         assert !project.isInQueue();
         while (project.isInQueue() || project.isBuilding()) {
@@ -85,7 +97,87 @@ public class FogbugzStatePollerTest {
         }
         //for marked as successful, nothing should be scheduled
         expected.addTag("merged");
-        poller.doRun(notifier, manager, new FogbugzEventListener());
+        this.poll(poller);
         assert !project.isInQueue();
+        // The cases from the search are used as they are, not fetched again.
+        verify(manager, never()).getCaseById(anyInt());
+    }
+
+    @Test
+    public void testJobNameFromConfiguredField() throws Exception {
+        given(notifier.getFogbugzManager()).willReturn(defaultManager);
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
+        given(notifier.getDescriptor()).willReturn(notifierDescriptor);
+        FogbugzUser fogbugzUser = new FogbugzUser(2, "test user");
+        given(manager.getFogbugzUser(2)).willReturn(fogbugzUser);
+        given(manager.getMergekeeperUserId()).willReturn(2);
+        // The search reads the field of the poller, the configured field names another job.
+        ArrayList<FogbugzCase> cases = new ArrayList<FogbugzCase>();
+        cases.add(new FogbugzCase(7, "HALLO!", fogbugzUser.ix, fogbugzUser.ix, "tag", true,
+                "maikelwever/repo1#c7", "r1336", "r1336", "1336", "myproject", "some revision"));
+        given(manager.searchForCases(anyString())).willReturn(cases);
+        given(defaultManager.getCaseById(7)).willReturn(new FogbugzCase(7, "HALLO!", fogbugzUser.ix, fogbugzUser.ix,
+                "tag", true, "maikelwever/repo1#c7", "r1336", "r1336", "1336", "otherproject", "some revision"));
+
+        FreeStyleProject project = j.createFreeStyleProject("myproject");
+        FreeStyleProject other = j.createFreeStyleProject("otherproject");
+        j.setQuietPeriod(200);
+        FogbugzStatePoller poller = new FogbugzStatePoller("1 1 1 1 1", "myproject", "cixproject");
+        poller.start(project, false);
+        this.poll(poller);
+        assert other.isInQueue();
+        assert !project.isInQueue();
+    }
+
+    @Test
+    public void testIncrementalRun() throws Exception {
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
+        FogbugzUser fogbugzUser = new FogbugzUser(2, "test user");
+        given(manager.getFogbugzUser(2)).willReturn(fogbugzUser);
+        given(manager.getMergekeeperUserId()).willReturn(2);
+        given(manager.searchForCases(anyString())).willThrow(new NoSuchCaseException("none"));
+        String query = "cixproject:\"myproject\" assignedto:\"test user\"";
+
+        FreeStyleProject project = j.createFreeStyleProject("myproject");
+        FogbugzStatePoller poller = new FogbugzStatePoller("1 1 1 1 1", "myproject", "cixproject");
+        poller.setIncremental(true);
+        poller.start(project, false);
+
+        // The first poll is a full one, after that only the edited cases are fetched.
+        this.poll(poller);
+        verify(manager).searchForCases(eq(query));
+        this.poll(poller);
+        verify(manager).searchForCases(contains(" edited:\""));
+
+        // The watermark survives a new poller, e.g. after a restart.
+        FogbugzStatePoller restarted = new FogbugzStatePoller("1 1 1 1 1", "myproject", "cixproject");
+        restarted.setIncremental(true);
+        restarted.start(project, false);
+        this.poll(restarted);
+        verify(manager, times(2)).searchForCases(contains(" edited:\""));
+        verify(manager, times(1)).searchForCases(eq(query));
+    }
+
+    /**
+     * Polls for the job of the poller alone, the way the {@link FogbugzPollCoordinator} does.
+     */
+    private void poll(FogbugzStatePoller poller) {
+        new FogbugzPollCoordinator(0).poll(notifier, poller.ciProjectField, Collections.singletonList(poller),
+                new FogbugzEventListener());
+    }
+
+    @Test
+    public void testEditedSinceIgnoresDefaultTimeZone() {
+        TimeZone original = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        try {
+            // 2015-06-01 12:00 UTC, the overlap is taken off again.
+            long since = 1433160000000L + FogbugzStatePoller.WATERMARK_OVERLAP;
+            assertEquals(" edited:\"2015-06-01 12:00..\"", FogbugzStatePoller.editedSince(since));
+            assertEquals(" edited:\"2015-06-01 14:00..\"",
+                    FogbugzStatePoller.editedSince(since, TimeZone.getTimeZone("Europe/Amsterdam")));
+        } finally {
+            TimeZone.setDefault(original);
+        }
     }
-}
\ No newline at end of file
+}
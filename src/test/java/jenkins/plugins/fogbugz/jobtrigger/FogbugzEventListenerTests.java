@@ -9,14 +9,31 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.paylogic.fogbugz.FogbugzCase;
 import org.paylogic.fogbugz.FogbugzManager;
 import org.paylogic.fogbugz.NoSuchCaseException;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
 
 /**
@@ -32,11 +49,16 @@ public class FogbugzEventListenerTests {
     private FogbugzNotifier notifier;
     @Mock
     private FogbugzManager manager;
+    @Mock
+    private FogbugzNotifier.DescriptorImpl descriptor;
+    @Mock
+    private StaplerRequest request;
 
     @Test
     public void testFogbugzEventListener() throws Exception  {
 
         given(notifier.getFogbugzManager()).willReturn(manager);
+        given(notifier.getFogbugzManager("cixproject")).willReturn(manager);
         given(manager.getCaseById(1)).willThrow(new NoSuchCaseException("1"));
         FogbugzCase expected = new FogbugzCase(7, "HALLO!", 2, 2, "merged", true,
                 "maikelwever/repo1#c7", "r1336", "r1336", "1336", "myproject", "some revision");
@@ -55,4 +77,174 @@ public class FogbugzEventListenerTests {
         assertEquals("<html><body>Scheduled ok</body></html>", response);
         assertEquals("CASE_ID=7", project.getQueueItem().getParams().trim());
     }
+
+    @Test
+    public void testFogbugzBulkTriggerListener() throws Exception {
+        given(notifier.getFogbugzManager()).willReturn(manager);
+        FogbugzCase merged = new FogbugzCase(7, "HALLO!", 2, 2, "merged", true,
+                "maikelwever/repo1#c7", "r1336", "r1336", "1336", "myproject", "some revision");
+        FogbugzCase open = new FogbugzCase(8, "HALLO!", 2, 2, "", true,
+                "maikelwever/repo1#c8", "r1336", "r1336", "1336", "myproject", "some revision");
+        given(notifier.getDescriptor()).willReturn(descriptor);
+        given(descriptor.getSuccessfulBuildTag()).willReturn("merged");
+        given(manager.searchForCases("ixBug:7,8,9")).willReturn(Arrays.asList(merged, open));
+
+        FreeStyleProject project = j.createFreeStyleProject("myproject_mergekeepers");
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("CASE_ID", "")));
+
+        Map<Integer, String> responses = new FogbugzBulkTriggerListener().scheduleJobs(notifier,
+                new LinkedHashSet<Integer>(Arrays.asList(0, 7, 8, 9)), null, "_mergekeepers", null, false);
+        assertEquals("<html><body>No case found</body></html>", responses.get(0));
+        assertEquals("<html><body>Case is already merged, skipping</body></html>", responses.get(7));
+        assertEquals("<html><body>Scheduled ok</body></html>", responses.get(8));
+        assertEquals("<html><body>No case found</body></html>", responses.get(9));
+        assertEquals("CASE_ID=8", project.getQueueItem().getParams().trim());
+    }
+
+    @Test
+    public void testTriggerAcceptedAndQueueFull() throws Exception {
+        given(request.getContextPath()).willReturn("/jenkins");
+        final FogbugzTriggerQueue queue = new FogbugzTriggerQueue(1, 1);
+        FogbugzEventListener listener = new FogbugzEventListener() {
+            @Override
+            FogbugzTriggerQueue getTriggerQueue() {
+                return queue;
+            }
+        };
+        // Keep the only worker busy, so there is room for one more trigger.
+        final CountDownLatch release = new CountDownLatch(1);
+        queue.submit("case 1", new Callable<String>() {
+            public String call() throws Exception {
+                release.await();
+                return "";
+            }
+        });
+
+        StaplerResponse accepted = mock(StaplerResponse.class);
+        given(accepted.getOutputStream()).willReturn(capture(new ByteArrayOutputStream()));
+        listener.doIndex(request, accepted, 1007, "some job", null, null);
+        verify(accepted).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(accepted).setHeader("Location", "/jenkins/fbTrigger/status?id=2");
+
+        ByteArrayOutputStream status = new ByteArrayOutputStream();
+        StaplerResponse statusResponse = mock(StaplerResponse.class);
+        given(statusResponse.getOutputStream()).willReturn(capture(status));
+        listener.doStatus(statusResponse, 2);
+        assertEquals("<html><body>Trigger 2 for case 1007 is queued</body></html>", status.toString());
+
+        StaplerResponse full = mock(StaplerResponse.class);
+        given(full.getOutputStream()).willReturn(capture(new ByteArrayOutputStream()));
+        listener.doIndex(request, full, 1008, "some job", null, null);
+        verify(full).setStatus(429);
+        verify(full).setHeader(eq("Retry-After"), anyString());
+        // The refused trigger can be retried right away.
+        assertTrue(FogbugzTriggerThrottle.get().accept(1008));
+
+        release.countDown();
+        awaitDone(queue.getTrigger(2));
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        final FogbugzTriggerQueue queue = new FogbugzTriggerQueue(1, 1);
+        FogbugzEventListener listener = new FogbugzEventListener() {
+            @Override
+            FogbugzTriggerQueue getTriggerQueue() {
+                return queue;
+            }
+        };
+        FogbugzTriggerQueue.Trigger done = queue.submit("case 1", new Callable<String>() {
+            public String call() {
+                return "<html><body>Scheduled ok</body></html>";
+            }
+        });
+        awaitDone(done);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StaplerResponse rsp = mock(StaplerResponse.class);
+        given(rsp.getOutputStream()).willReturn(capture(out));
+        listener.doStatus(rsp, done.getId());
+        assertEquals("<html><body>Scheduled ok</body></html>", out.toString());
+
+        StaplerResponse unknown = mock(StaplerResponse.class);
+        given(unknown.getOutputStream()).willReturn(capture(new ByteArrayOutputStream()));
+        listener.doStatus(unknown, 99);
+        verify(unknown).setStatus(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    @Test
+    public void testFailedTriggerIsNotEchoed() throws Exception {
+        final FogbugzTriggerQueue queue = new FogbugzTriggerQueue(1, 1);
+        FogbugzEventListener listener = new FogbugzEventListener() {
+            @Override
+            FogbugzTriggerQueue getTriggerQueue() {
+                return queue;
+            }
+        };
+        FogbugzTriggerQueue.Trigger failed = queue.submit("case 1", new Callable<String>() {
+            public String call() {
+                throw new IllegalStateException("<script>alert(1)</script>");
+            }
+        });
+        awaitDone(failed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StaplerResponse rsp = mock(StaplerResponse.class);
+        given(rsp.getOutputStream()).willReturn(capture(out));
+        listener.doStatus(rsp, failed.getId());
+        assertEquals(FogbugzTriggerQueue.FAILED_RESPONSE, out.toString());
+        assertFalse(out.toString().contains("<script>"));
+    }
+
+    @Test
+    public void testBulkTriggerGoesThroughQueue() throws Exception {
+        given(request.getContextPath()).willReturn("/jenkins");
+        final FogbugzTriggerQueue queue = new FogbugzTriggerQueue(1, 1);
+        FogbugzBulkTriggerListener listener = new FogbugzBulkTriggerListener() {
+            @Override
+            FogbugzTriggerQueue getTriggerQueue() {
+                return queue;
+            }
+        };
+        // Triggered moments ago.
+        assertTrue(FogbugzTriggerThrottle.get().accept(2001));
+
+        StaplerResponse accepted = mock(StaplerResponse.class);
+        given(accepted.getOutputStream()).willReturn(capture(new ByteArrayOutputStream()));
+        listener.doIndex(request, accepted, "2001", null, null, null);
+        verify(accepted).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(accepted).setHeader("Location", "/jenkins/fbTrigger/status?id=1");
+
+        FogbugzTriggerQueue.Trigger trigger = queue.getTrigger(1);
+        awaitDone(trigger);
+        assertEquals("<html><body><ul><li>2001: Case was triggered moments ago, skipping</li></ul></body></html>",
+                trigger.getResponse());
+    }
+
+    @Test
+    public void testBulkTriggerLimitsCases() throws Exception {
+        StringBuilder caseids = new StringBuilder();
+        for (int i = 1; i <= FogbugzBulkTriggerListener.MAX_IDS + 1; i++) {
+            caseids.append(i).append(",");
+        }
+        StaplerResponse rsp = mock(StaplerResponse.class);
+        given(rsp.getOutputStream()).willReturn(capture(new ByteArrayOutputStream()));
+        new FogbugzBulkTriggerListener().doIndex(request, rsp, caseids.toString(), null, null, null);
+        verify(rsp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    private static ServletOutputStream capture(final ByteArrayOutputStream out) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                out.write(b);
+            }
+        };
+    }
+
+    private static void awaitDone(FogbugzTriggerQueue.Trigger trigger) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (trigger.getState() != FogbugzTriggerQueue.State.DONE) {
+            assertTrue("Trigger did not finish in time.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
 }
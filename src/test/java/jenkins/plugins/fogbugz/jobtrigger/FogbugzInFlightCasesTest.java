@@ -0,0 +1,113 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FogbugzInFlightCasesTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testQueuedAndRunning() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("myproject");
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("CASE_ID", "")));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                started.countDown();
+                release.await();
+                return true;
+            }
+        });
+        FogbugzInFlightCases inFlight = FogbugzInFlightCases.get();
+        assertFalse(inFlight.isInFlight(project, 7));
+
+        // A cancelled build is no longer in flight.
+        project.scheduleBuild2(1000, new FogbugzBuildCause(),
+                new ParametersAction(new StringParameterValue("CASE_ID", "8")));
+        assertTrue(inFlight.isQueued(project, 8));
+        Queue.getInstance().cancel(project.getQueueItem());
+        assertFalse(inFlight.isInFlight(project, 8));
+
+        Future<FreeStyleBuild> build = project.scheduleBuild2(0, new FogbugzBuildCause(),
+                new ParametersAction(new StringParameterValue("CASE_ID", " 7 ")));
+        assertTrue(inFlight.isQueued(project, 7));
+        assertTrue(inFlight.isInFlight(project, 7));
+        assertFalse(inFlight.isInFlight(project, 8));
+
+        started.await();
+        assertFalse(inFlight.isQueued(project, 7));
+        assertTrue(inFlight.isInFlight(project, 7));
+
+        release.countDown();
+        j.assertBuildStatusSuccess(build);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (inFlight.isInFlight(project, 7)) {
+            assertTrue("Case is still in flight after the build finished.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testLeftWithoutStarting() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("myproject");
+        FogbugzInFlightCases inFlight = new FogbugzInFlightCases(100);
+        assertFalse(inFlight.isInFlight(project, 9));
+
+        inFlight.addQueued(1, FogbugzInFlightCases.key(project, "9"));
+        inFlight.left(1, false);
+        assertFalse(inFlight.isQueued(project, 9));
+        assertTrue(inFlight.isInFlight(project, 9));
+
+        // No build came of it.
+        Thread.sleep(200);
+        assertFalse(inFlight.isInFlight(project, 9));
+    }
+
+    @Test
+    public void testStartedBuildIsMatchedByQueueItem() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("myproject");
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("CASE_ID", "")));
+        FreeStyleBuild build = j.assertBuildStatusSuccess(project.scheduleBuild2(0, new FogbugzBuildCause(),
+                new ParametersAction(new StringParameterValue("CASE_ID", "9"))));
+        FogbugzInFlightCases inFlight = new FogbugzInFlightCases(1000);
+        assertFalse(inFlight.isInFlight(project, 9));
+
+        String key = FogbugzInFlightCases.key(project, "9");
+        inFlight.addQueued(1, key);
+        inFlight.addQueued(2, key);
+        inFlight.left(1, false);
+        Thread.sleep(700);
+        inFlight.left(2, false);
+
+        // The second item starts and finishes first, the first one stays starting until it is stale.
+        inFlight.onStarted(build, 2);
+        inFlight.onFinalized(build, 2);
+        assertTrue(inFlight.isInFlight(project, 9));
+        Thread.sleep(500);
+        assertFalse(inFlight.isInFlight(project, 9));
+    }
+}
@@ -0,0 +1,53 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FogbugzJobIndexTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testFindsJobsInFolders() throws Exception {
+        MockFolder folder = j.createFolder("team");
+        FreeStyleProject project = folder.createProject(FreeStyleProject.class, "myproject_mergekeepers");
+
+        FogbugzJobIndex index = FogbugzJobIndex.get();
+        assertSame(project, index.find("myproject_mergekeepers"));
+        assertSame(project, index.find("team/myproject_mergekeepers"));
+        assertNull(index.find("otherproject_mergekeepers"));
+    }
+
+    @Test
+    public void testIndexesJobsOfCreatedFolder() throws Exception {
+        MockFolder folder = j.createFolder("team");
+        FreeStyleProject project = folder.createProject(FreeStyleProject.class, "myproject_mergekeepers");
+        FogbugzJobIndex index = FogbugzJobIndex.get();
+        index.onDeleted(folder);
+        assertNull(index.find("myproject_mergekeepers"));
+
+        // Like a folder that is copied with its jobs, only the folder itself is reported.
+        index.onCreated(folder);
+        assertSame(project, index.find("myproject_mergekeepers"));
+    }
+
+    @Test
+    public void testFollowsRenamesAndDeletes() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("before");
+        FogbugzJobIndex index = FogbugzJobIndex.get();
+        assertSame(project, index.find("before"));
+
+        project.renameTo("after");
+        assertNull(index.find("before"));
+        assertSame(project, index.find("after"));
+
+        project.delete();
+        assertNull(index.find("after"));
+    }
+}
@@ -0,0 +1,30 @@
+package jenkins.plugins.fogbugz.jobtrigger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FogbugzTriggerThrottleTest {
+
+    @Test
+    public void testRepeatedTriggersAreSkipped() throws Exception {
+        FogbugzTriggerThrottle throttle = new FogbugzTriggerThrottle(200);
+        assertTrue(throttle.accept(7));
+        assertFalse(throttle.accept(7));
+        assertTrue(throttle.accept(8));
+
+        throttle.forget(8);
+        assertTrue(throttle.accept(8));
+
+        Thread.sleep(300);
+        assertTrue(throttle.accept(7));
+    }
+
+    @Test
+    public void testSameCaseSharesLock() {
+        FogbugzTriggerThrottle throttle = new FogbugzTriggerThrottle(200);
+        assertSame(throttle.getLock(7), throttle.getLock(7));
+    }
+}
@@ -0,0 +1,186 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.junit.Test;
+import org.paylogic.fogbugz.FogbugzCase;
+import org.paylogic.fogbugz.FogbugzEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+public class FogbugzCaseCacheTest {
+
+    private static FogbugzCase newCase(int id) {
+        return new FogbugzCase(id, "HALLO!", 2, 2, "tag", true,
+                "maikelwever/repo1#c7", "r1336", "r1336", "1336", "myproject", "some revision");
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(60, 2);
+        FogbugzCase first = newCase(1);
+        cache.put("cixproject", first);
+        cache.put("cixproject", newCase(2));
+        assertEquals(1, cache.get("cixproject", 1).getId());
+        cache.put("cixproject", newCase(3));
+
+        assertNull(cache.get("cixproject", 2));
+        assertEquals(1, cache.get("cixproject", 1).getId());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidateDropsAllFields() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(60, 10);
+        cache.put("cixproject", newCase(7));
+        cache.put(null, newCase(7));
+        cache.put(null, newCase(8));
+        cache.invalidate(7, 2);
+
+        assertNull(cache.get("cixproject", 7));
+        assertNull(cache.get(null, 7));
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testZeroTtlDisablesCache() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(0, 10);
+        cache.put(null, newCase(7));
+        assertNull(cache.get(null, 7));
+    }
+
+    @Test
+    public void testAssignmentsNotCountedAsCases() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(60, 10);
+        FogbugzEvent event = mock(FogbugzEvent.class);
+        assertNull(cache.getLastAssignment(7, 2));
+        cache.putLastAssignment(7, 2, event);
+        assertSame(event, cache.getLastAssignment(7, 2));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testSaveOnlyDropsAssignmentOfAssignee() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(60, 10);
+        FogbugzEvent gatekeeper = mock(FogbugzEvent.class);
+        FogbugzEvent mergekeeper = mock(FogbugzEvent.class);
+        cache.putLastAssignment(7, 2, gatekeeper);
+        cache.putLastAssignment(7, 3, mergekeeper);
+        cache.put(null, newCase(7));
+
+        // Assigned to user 3 now.
+        cache.invalidate(7, 3);
+        assertNull(cache.get(null, 7));
+        assertSame(gatekeeper, cache.getLastAssignment(7, 2));
+        assertNull(cache.getLastAssignment(7, 3));
+    }
+
+    @Test
+    public void testCopiesCases() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(60, 10);
+        FogbugzCase original = newCase(7);
+        cache.put(null, original);
+        original.addTag("changed");
+
+        FogbugzCase cached = cache.get(null, 7);
+        assertNotSame(original, cached);
+        assertFalse(cached.hasTag("changed"));
+        assertEquals("HALLO!", cached.getTitle());
+        assertEquals("myproject", cached.getCiProject());
+        cached.addTag("changed");
+        assertFalse(cache.get(null, 7).hasTag("changed"));
+    }
+
+    @Test
+    public void testCachedCaseIsNotSaved() {
+        FogbugzCaseCache cache = new FogbugzCaseCache(60, 10);
+        cache.put("cixproject", newCase(7));
+        final FogbugzCase fresh = newCase(7);
+        final FogbugzCase[] saved = new FogbugzCase[1];
+        CachingFogbugzManager manager = new CachingFogbugzManager(cache, "http://fogbugz/", "token", "", "", "", "",
+                "cixproject", 2, 2) {
+            @Override
+            public FogbugzCase getUncachedCaseById(int id) {
+                return fresh;
+            }
+
+            @Override
+            public FogbugzEvent getLastAssignedTo(int caseId, int userId) {
+                return null;
+            }
+
+            @Override
+            public boolean saveCase(FogbugzCase fbCase, String comment) {
+                saved[0] = fbCase;
+                return true;
+            }
+        };
+        FogbugzNotifier.DescriptorImpl descriptor = mock(FogbugzNotifier.DescriptorImpl.class);
+        given(descriptor.getGatekeeperUserId()).willReturn(2);
+        given(descriptor.getMergekeeperUserId()).willReturn(2);
+
+        FogbugzReport report = new FogbugzReport(7, true, "Build passed", null, Arrays.asList("merged"), false);
+        assertTrue(report.deliver(manager, descriptor));
+        // The report edits a freshly fetched case, the cached one is left alone.
+        assertSame(fresh, saved[0]);
+        assertTrue(fresh.hasTag("merged"));
+        assertFalse(cache.get("cixproject", 7).hasTag("merged"));
+    }
+
+    @Test
+    public void testAssignsBackToLastAssigner() {
+        final FogbugzCase fresh = newCase(7);
+        final List<Integer> lookedUp = Collections.synchronizedList(new ArrayList<Integer>());
+        final FogbugzEvent mergekeeperEvent = mock(FogbugzEvent.class);
+        given(mergekeeperEvent.getPerson()).willReturn(42);
+        CachingFogbugzManager manager = new CachingFogbugzManager(new FogbugzCaseCache(60, 10), "http://fogbugz/",
+                "token", "", "", "", "", "cixproject", 3, 2) {
+            @Override
+            public FogbugzCase getUncachedCaseById(int id) {
+                return fresh;
+            }
+
+            @Override
+            public FogbugzEvent getLastAssignedTo(int caseId, int userId) {
+                lookedUp.add(userId);
+                return userId == 3 ? mergekeeperEvent : null;
+            }
+
+            @Override
+            public boolean saveCase(FogbugzCase fbCase, String comment) {
+                return true;
+            }
+        };
+        FogbugzNotifier.DescriptorImpl descriptor = mock(FogbugzNotifier.DescriptorImpl.class);
+        given(descriptor.getGatekeeperUserId()).willReturn(2);
+        given(descriptor.getMergekeeperUserId()).willReturn(3);
+        given(descriptor.doAssignBaseCase()).willReturn(true);
+
+        assertTrue(new FogbugzReport(7, true, "Build passed", null, Collections.<String>emptyList(), false)
+                .deliver(manager, descriptor));
+        // The gatekeeper did not assign it, so the mergekeeper assignment is used.
+        assertEquals(42, fresh.getAssignedTo());
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), new HashSet<Integer>(lookedUp));
+
+        // Without assigning back, the history is not looked at.
+        lookedUp.clear();
+        given(descriptor.doAssignBaseCase()).willReturn(false);
+        assertTrue(new FogbugzReport(7, true, "Build passed", null, Collections.<String>emptyList(), false)
+                .deliver(manager, descriptor));
+        assertTrue(lookedUp.isEmpty());
+    }
+}
@@ -0,0 +1,103 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FogbugzNotificationJournalTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testReplaysReportsThatAreNotDone() throws Exception {
+        File file = new File(tmp.getRoot(), "fogbugz/outbox.journal");
+        FogbugzNotificationJournal journal = new FogbugzNotificationJournal(file);
+        assertTrue(journal.open().isEmpty());
+
+        long first = journal.add(new FogbugzReport(7, true, "first", "http://jenkins/job/a/1/",
+                Arrays.asList("merged"), true));
+        journal.add(new FogbugzReport(7, false, "second", "http://jenkins/job/a/2/",
+                Collections.<String>emptyList(), false));
+        journal.done(first);
+        // Records are written in order, so once this one is on disk the 'done' record is as well.
+        journal.add(new FogbugzReport(8, true, "third \u2713", null,
+                Arrays.asList("merged", "released"), true));
+
+        List<FogbugzNotificationJournal.Entry> entries = new FogbugzNotificationJournal(file).open();
+        assertEquals(2, entries.size());
+        assertEquals("second", entries.get(0).getReport().getMessage());
+        assertEquals(7, entries.get(0).getReport().getCaseId());
+        assertEquals(false, entries.get(0).getReport().isSuccessful());
+        assertEquals("third \u2713", entries.get(1).getReport().getMessage());
+        assertEquals(null, entries.get(1).getReport().getBuildUrl());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("merged", "released")), entries.get(1).getReport().getTags());
+        assertTrue(entries.get(1).getReport().isSetMilestone());
+    }
+
+    @Test
+    public void testStopsAtCorruptRecord() throws Exception {
+        File file = new File(tmp.getRoot(), "fogbugz/outbox.journal");
+        FogbugzNotificationJournal journal = new FogbugzNotificationJournal(file);
+        journal.open();
+        journal.add(new FogbugzReport(7, true, "first", null, Collections.<String>emptyList(), false));
+        long firstLength = file.length();
+        journal.add(new FogbugzReport(8, true, "second", null, Collections.<String>emptyList(), false));
+        journal.add(new FogbugzReport(9, true, "third", null, Collections.<String>emptyList(), false));
+
+        // Flip a byte in the message of the second report.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(firstLength + 30);
+            int b = raf.read();
+            raf.seek(firstLength + 30);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        List<FogbugzNotificationJournal.Entry> entries = new FogbugzNotificationJournal(file).open();
+        assertEquals(1, entries.size());
+        assertEquals("first", entries.get(0).getReport().getMessage());
+    }
+
+    @Test
+    public void testIgnoresHugeRecordLength() throws Exception {
+        File file = new File(tmp.getRoot(), "fogbugz/outbox.journal");
+        FogbugzNotificationJournal journal = new FogbugzNotificationJournal(file);
+        journal.open();
+        journal.add(new FogbugzReport(7, true, "first", null, Collections.<String>emptyList(), false));
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeLong(42);
+        } finally {
+            out.close();
+        }
+
+        List<FogbugzNotificationJournal.Entry> entries = new FogbugzNotificationJournal(file).open();
+        assertEquals(1, entries.size());
+        assertEquals("first", entries.get(0).getReport().getMessage());
+    }
+
+    @Test
+    public void testRetryDelayIsBounded() {
+        for (int attempts = 1; attempts < 40; attempts++) {
+            long delay = FogbugzNotificationOutbox.retryDelay(attempts);
+            assertTrue(delay >= Math.min(FogbugzNotificationOutbox.RETRY_DELAY, FogbugzNotificationOutbox.MAX_RETRY_DELAY) / 2);
+            assertTrue(delay <= FogbugzNotificationOutbox.MAX_RETRY_DELAY);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FogbugzReportTest {
+
+    @Test
+    public void testMerge() {
+        FogbugzReport first = new FogbugzReport(7, true, "Build 1 passed", "http://jenkins/job/a/1/",
+                Arrays.asList("merged"), true);
+        FogbugzReport second = new FogbugzReport(7, false, "Build 2 failed", "http://jenkins/job/a/2/",
+                Arrays.asList("flaky"), false);
+
+        FogbugzReport merged = first.merge(second);
+        assertEquals(7, merged.getCaseId());
+        assertFalse(merged.isSuccessful());
+        assertEquals("Build 1 passed\n\nBuild 2 failed", merged.getMessage());
+        assertEquals("http://jenkins/job/a/2/", merged.getBuildUrl());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("flaky")), merged.getTags());
+        assertFalse(merged.isSetMilestone());
+    }
+
+    @Test
+    public void testMergeSuccessThenFailure() {
+        FogbugzReport success = new FogbugzReport(7, true, "Build 1 passed", "http://jenkins/job/a/1/",
+                Arrays.asList("merged"), true);
+        FogbugzReport failure = new FogbugzReport(7, false, "Build 2 failed", "http://jenkins/job/a/2/",
+                Collections.<String>emptyList(), false);
+
+        // The success tag and milestone must not end up on a case whose last build failed.
+        FogbugzReport merged = success.merge(failure);
+        assertFalse(merged.isSuccessful());
+        assertTrue(merged.getTags().isEmpty());
+        assertFalse(merged.isSetMilestone());
+
+        // The other way around, the success wins.
+        merged = failure.merge(success);
+        assertTrue(merged.isSuccessful());
+        assertEquals(Collections.singleton("merged"), merged.getTags());
+        assertTrue(merged.isSetMilestone());
+    }
+
+    @Test
+    public void testMergeKeepsMessageSize() {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < ReportMessageAggregator.MAX_BYTES; i++) {
+            big.append('x');
+        }
+        FogbugzReport report = new FogbugzReport(7, false, big.toString(), null,
+                Collections.<String>emptyList(), false);
+        for (int i = 0; i < 3; i++) {
+            report = report.merge(new FogbugzReport(7, false, "Build " + i + " failed", null,
+                    Collections.<String>emptyList(), false));
+        }
+        assertTrue(report.getMessage().length() <= ReportMessageAggregator.MAX_BYTES);
+        assertTrue(report.getMessage().startsWith("... earlier messages left out ..."));
+        assertTrue(report.getMessage().endsWith("Build 1 failed\n\nBuild 2 failed"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeOtherCase() {
+        FogbugzReport report = new FogbugzReport(7, true, "", null, Collections.<String>emptyList(), false);
+        report.merge(new FogbugzReport(8, true, "", null, Collections.<String>emptyList(), false));
+    }
+}
@@ -0,0 +1,41 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import com.github.jknack.handlebars.Template;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FogbugzTemplateCacheTest {
+
+    @Test
+    public void testGetCompilesOnce() throws Exception {
+        FogbugzTemplateCache cache = new FogbugzTemplateCache();
+        Template template = cache.get(FogbugzTemplateCache.Kind.SUCCESSFUL, "Build {{buildNumber}} passed");
+        assertSame(template, cache.get(FogbugzTemplateCache.Kind.SUCCESSFUL, "Build {{buildNumber}} passed"));
+        assertNotSame(template, cache.get(FogbugzTemplateCache.Kind.SUCCESSFUL, "Build {{buildNumber}} is fine"));
+    }
+
+    @Test
+    public void testReplaceAllKeepsCacheOnCompileError() throws Exception {
+        FogbugzTemplateCache cache = new FogbugzTemplateCache();
+        Template failed = cache.get(FogbugzTemplateCache.Kind.FAILED, "Build failed");
+
+        Map<FogbugzTemplateCache.Kind, String> texts =
+                new EnumMap<FogbugzTemplateCache.Kind, String>(FogbugzTemplateCache.Kind.class);
+        texts.put(FogbugzTemplateCache.Kind.FAILED, "Build failed again");
+        texts.put(FogbugzTemplateCache.Kind.SCHEDULED, "{{#if name}}Scheduled");
+        try {
+            cache.replaceAll(texts);
+            fail("Unclosed block should not compile");
+        } catch (FogbugzTemplateCache.CompileException e) {
+            assertEquals(FogbugzTemplateCache.Kind.SCHEDULED, e.getKind());
+        }
+        assertSame(failed, cache.get(FogbugzTemplateCache.Kind.FAILED, "Build failed"));
+    }
+}
@@ -0,0 +1,110 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogKeywordScannerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String LOG = "hello\r\n" +
+            "[BuildReportMessage] one \u2713\n" +
+            "nothing here\n" +
+            "she said hers\n" +
+            "[BuildReportMessage] two his\n" +
+            "last [BuildReportMessage]";
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeLog(String name, boolean compressed) throws Exception {
+        File file = tmp.newFile(name);
+        OutputStream out = new FileOutputStream(file);
+        if (compressed) {
+            out = new GZIPOutputStream(out);
+        }
+        try {
+            out.write(LOG.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertMatches(Map<String, List<String>> result) {
+        assertEquals(Arrays.asList("[BuildReportMessage] one \u2713", "[BuildReportMessage] two his",
+                "last [BuildReportMessage]"), result.get("[BuildReportMessage]"));
+        assertEquals(Arrays.asList("hello", "nothing here", "she said hers"), result.get("he"));
+        assertEquals(Arrays.asList("she said hers"), result.get("hers"));
+        assertEquals(Arrays.asList("[BuildReportMessage] two his"), result.get("his"));
+    }
+
+    @Test
+    public void testOverlappingKeywords() throws Exception {
+        File log = writeLog("log", false);
+        List<String> keywords = Arrays.asList("[BuildReportMessage]", "he", "hers", "his");
+        assertMatches(new LogKeywordScanner(keywords, UTF8).scan(log));
+    }
+
+    @Test
+    public void testLinesAcrossRegions() throws Exception {
+        File log = writeLog("log", false);
+        List<String> keywords = Arrays.asList("[BuildReportMessage]", "he", "hers", "his");
+        for (int regionSize = 1; regionSize < 10; regionSize++) {
+            assertMatches(new LogKeywordScanner(keywords, UTF8, regionSize, Long.MAX_VALUE, regionSize).scan(log));
+        }
+    }
+
+    @Test
+    public void testParallelRanges() throws Exception {
+        File log = writeLog("log", false);
+        List<String> keywords = Arrays.asList("[BuildReportMessage]", "he", "hers", "his");
+        for (int rangeSize = 1; rangeSize < 20; rangeSize++) {
+            assertMatches(new LogKeywordScanner(keywords, UTF8, rangeSize, 0, rangeSize).scan(log));
+        }
+    }
+
+    @Test
+    public void testCompressedLog() throws Exception {
+        File log = writeLog("log.gz", true);
+        List<String> keywords = Arrays.asList("[BuildReportMessage]", "he", "hers", "his");
+        assertMatches(new LogKeywordScanner(keywords, UTF8).scan(log));
+    }
+
+    @Test
+    public void testLongLineIsCutOff() throws Exception {
+        StringBuilder log = new StringBuilder("[BuildReportMessage] ");
+        while (log.length() < 3 * LogKeywordScanner.MAX_LINE_LENGTH) {
+            log.append("0123456789");
+        }
+        log.append(" [BuildReportMessage] end\nnext\n");
+        File file = tmp.newFile("log");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(log.toString().getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        List<String> keywords = Arrays.asList("[BuildReportMessage]", "next");
+        for (int regionSize : new int[] {1000, 64 * 1024 * 1024}) {
+            Map<String, List<String>> result =
+                    new LogKeywordScanner(keywords, UTF8, regionSize, Long.MAX_VALUE, regionSize).scan(file);
+            List<String> found = result.get("[BuildReportMessage]");
+            assertEquals(1, found.size());
+            assertEquals(log.substring(0, "[BuildReportMessage]".length() + LogKeywordScanner.MAX_LINE_LENGTH),
+                    found.get(0));
+            assertEquals(Arrays.asList("next"), result.get("next"));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogMessageIndexTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void append(File file, String text) throws Exception {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testIndexIsBuiltAndReused() throws Exception {
+        File log = tmp.newFile("log");
+        File indexFile = new File(tmp.getRoot(), LogMessageIndex.FILE_NAME);
+        append(log, "start\n[BuildReportMessage] one \u2713\r\nmiddle\n[BuildReportMessage] two\n");
+
+        LogMessageIndex index = new LogMessageIndex(log, indexFile, "[BuildReportMessage]", UTF8);
+        assertEquals(Arrays.asList("[BuildReportMessage] one \u2713", "[BuildReportMessage] two"), index.getMessages());
+        assertTrue(indexFile.exists());
+        // Read back from the index this time.
+        assertEquals(Arrays.asList("[BuildReportMessage] one \u2713", "[BuildReportMessage] two"), index.getMessages());
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenLogChanges() throws Exception {
+        File log = tmp.newFile("log");
+        File indexFile = new File(tmp.getRoot(), LogMessageIndex.FILE_NAME);
+        append(log, "[BuildReportMessage] one\n");
+
+        LogMessageIndex index = new LogMessageIndex(log, indexFile, "[BuildReportMessage]", UTF8);
+        assertEquals(Arrays.asList("[BuildReportMessage] one"), index.getMessages());
+
+        append(log, "other\n[BuildReportMessage] two");
+        assertEquals(Arrays.asList("[BuildReportMessage] one", "[BuildReportMessage] two"), index.getMessages());
+    }
+
+    @Test
+    public void testIndexOfOtherKeywordIsNotUsed() throws Exception {
+        File log = tmp.newFile("log");
+        File indexFile = new File(tmp.getRoot(), LogMessageIndex.FILE_NAME);
+        append(log, "[BuildReportMessage] one\n[Other] two\n");
+
+        assertEquals(Arrays.asList("[BuildReportMessage] one"),
+                new LogMessageIndex(log, indexFile, "[BuildReportMessage]", UTF8).getMessages());
+        assertEquals(Arrays.asList("[Other] two"),
+                new LogMessageIndex(log, indexFile, "[Other]", UTF8).getMessages());
+    }
+
+    @Test
+    public void testDamagedIndexIsRebuilt() throws Exception {
+        File log = tmp.newFile("log");
+        File indexFile = new File(tmp.getRoot(), LogMessageIndex.FILE_NAME);
+        append(log, "[BuildReportMessage] one\nother\n[BuildReportMessage] two\n");
+
+        LogMessageIndex index = new LogMessageIndex(log, indexFile, "[BuildReportMessage]", UTF8);
+        assertEquals(Arrays.asList("[BuildReportMessage] one", "[BuildReportMessage] two"), index.getMessages());
+
+        // Overwrite the count, which comes right before the two entries of offset and length.
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.seek(file.length() - 2 * (8 + 4) - 4);
+            file.writeInt(Integer.MAX_VALUE / 2);
+        } finally {
+            file.close();
+        }
+        assertEquals(Arrays.asList("[BuildReportMessage] one", "[BuildReportMessage] two"), index.getMessages());
+    }
+}
@@ -0,0 +1,64 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReportMessageAggregatorTest {
+
+    @Test
+    public void testMessagesThatFitAreKeptInOrder() {
+        ReportMessageAggregator messages = new ReportMessageAggregator(1024);
+        messages.add("one");
+        messages.add("two");
+        messages.addNote("\nnote");
+        assertEquals("one\ntwo\n\nnote", messages.toString());
+    }
+
+    @Test
+    public void testEmptyUntilSomethingIsAdded() {
+        ReportMessageAggregator messages = new ReportMessageAggregator(1024);
+        assertTrue(messages.isEmpty());
+        messages.addNote("note");
+        assertFalse(messages.isEmpty());
+    }
+
+    @Test
+    public void testRepeatedMessagesAreCounted() {
+        ReportMessageAggregator messages = new ReportMessageAggregator(1024);
+        messages.add("flaky");
+        messages.add("other");
+        messages.add("flaky");
+        messages.add("flaky");
+        assertEquals("flaky (3 times)\nother\n", messages.toString());
+    }
+
+    @Test
+    public void testFirstAndLastMessagesAreKept() {
+        // Each message is 4 bytes with its line end, so both head and tail fit two of them.
+        ReportMessageAggregator messages = new ReportMessageAggregator(16);
+        for (int i = 100; i < 110; i++) {
+            messages.add(Integer.toString(i));
+        }
+        messages.add("100");
+        assertEquals(6, messages.getOmitted());
+        assertEquals("100 (2 times)\n101\n... 6 more messages left out ...\n108\n109\n", messages.toString());
+    }
+
+    @Test
+    public void testLargeMessageIsShortened() {
+        ReportMessageAggregator messages = new ReportMessageAggregator(40);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append('\u2713');
+        }
+        messages.add(large.toString());
+        String result = messages.toString();
+        assertTrue(result.endsWith(" ...\n"));
+        assertTrue(result.getBytes(Charset.forName("UTF-8")).length <= 20);
+    }
+}
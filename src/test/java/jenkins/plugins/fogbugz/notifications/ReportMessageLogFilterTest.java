@@ -0,0 +1,56 @@
+package jenkins.plugins.fogbugz.notifications;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReportMessageLogFilterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FreeStyleProject createProject(String name) throws IOException {
+        FreeStyleProject project = j.createFreeStyleProject(name);
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                listener.getLogger().println("Compiling...");
+                listener.getLogger().println(LogMessageSearcher.DEFAULT_MESSAGE_KEYWORD + " 3 tests failed");
+                listener.getLogger().println("Done.");
+                return true;
+            }
+        });
+        return project;
+    }
+
+    @Test
+    public void testCapturesKeywordLines() throws Exception {
+        FreeStyleProject project = this.createProject("reporting");
+        project.getPublishersList().add(new FogbugzNotifier());
+        // Without a CASE_ID the notifier reports nothing, the messages are captured all the same.
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        FogbugzReportMessagesAction action = build.getAction(FogbugzReportMessagesAction.class);
+        assertEquals(Arrays.asList(LogMessageSearcher.DEFAULT_MESSAGE_KEYWORD + " 3 tests failed"),
+                action.getMessages());
+    }
+
+    @Test
+    public void testSkipsJobsWithoutNotifier() throws Exception {
+        FreeStyleBuild build = this.createProject("not-reporting").scheduleBuild2(0).get();
+        assertNull(build.getAction(FogbugzReportMessagesAction.class));
+    }
+}